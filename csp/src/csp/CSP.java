@@ -7,9 +7,10 @@ package csp;
 import static org.junit.Assert.fail;
 
 import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
 import java.util.Set;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -19,11 +20,20 @@ import java.util.List;
  * on the dates of each meeting.
  */
 public class CSP {
+    
+    /**
+     * How much the search propagates after giving a meeting a day:
+     * BACKTRACKING only checks the constraints between assigned meetings,
+     * FORWARD_CHECKING also prunes the domains of the meeting's unassigned
+     * neighbors, and MAC (maintained arc consistency) re-runs AC-3 from the
+     * meeting's constraints until no domain changes
+     */
+    public enum Search { BACKTRACKING, FORWARD_CHECKING, MAC }
 
     /**
      * Public interface for the CSP solver in which the number of meetings,
      * range of allowable dates for each meeting, and constraints on meeting
-     * times are specified.
+     * times are specified. Searches with maintained arc consistency.
      * @param nMeetings The number of meetings that must be scheduled, indexed from 0 to n-1
      * @param rangeStart The start date (inclusive) of the domains of each of the n meeting-variables
      * @param rangeEnd The end date (inclusive) of the domains of each of the n meeting-variables
@@ -32,284 +42,595 @@ public class CSP {
      *         indexed by the variable they satisfy, or null if no solution exists.
      */
     public static List<LocalDate> solve (int nMeetings, LocalDate rangeStart, LocalDate rangeEnd, Set<DateConstraint> constraints) {
-    	ArrayList<dateVar> 		domains 		= new ArrayList<>();  //a list of the domains 
-    	LocalDate 				curr 			= rangeStart;
-    	ArrayList<LocalDate> 	result 			= new ArrayList<>();
+    	return solve(nMeetings, rangeStart, rangeEnd, constraints, Search.MAC);
+    }
+    
+    /**
+     * Solves the CSP like solve, with the given amount of propagation during search
+     * @param nMeetings The number of meetings that must be scheduled, indexed from 0 to n-1
+     * @param rangeStart The start date (inclusive) of the domains of each of the n meeting-variables
+     * @param rangeEnd The end date (inclusive) of the domains of each of the n meeting-variables
+     * @param constraints Date constraints on the meeting times (unary and binary for this assignment)
+     * @param search How much to propagate after each assignment
+     * @return A list of dates that satisfies each of the constraints for each of the n meetings,
+     *         indexed by the variable they satisfy, or null if no solution exists.
+     */
+    public static List<LocalDate> solve (int nMeetings, LocalDate rangeStart, LocalDate rangeEnd, Set<DateConstraint> constraints, Search search) {
+    	long days = ChronoUnit.DAYS.between(rangeStart, rangeEnd) + 1;
+    	if (days > Integer.MAX_VALUE) {
+    		throw new IllegalArgumentException("Date range too long: " + days + " days");
+    	}
     	
-    	domains = createDomains(nMeetings, rangeStart, rangeEnd, curr);
+    	ArrayList<dateVar> domains = createDomains(nMeetings, (int) days);  //a list of the domains
     	
     	//performing node-consistent filtering on the different domains
-    	//performing arc-consistent filtering on the different domains
+    	//performing arc-consistent filtering to a fixpoint over every binary constraint
     	//returning null if a null solution occurs
-    	unaryFilter(domains, constraints);
-    	binaryFilter(domains, constraints);
+    	unaryFilter(domains, rangeStart, constraints);
     	for (dateVar dom: domains) {
-    		if (dom.domain.isEmpty()) {return null;}
+    		if (dom.isEmpty()) {return null;}
+    	}
+    	ArrayList<BinaryDateConstraint> arcs 	= binaryConstraints(constraints);
+    	int[][] 						index 	= constraintIndex(nMeetings, arcs);
+    	int[] 							all 	= new int[arcs.size()];
+    	for (int c = 0; c < all.length; c++) {
+    		all[c] = c;
     	}
+    	if (!propagate(domains, arcs, index, all)) {return null;}
     	
-    	//finding a solution through a backtracking recursion
-    	return backtracking(nMeetings, result, domains, constraints);
+    	//finding a solution through a backtracking recursion, as day offsets,
+    	//recording domain changes from here on so that they can be undone
+    	int[] solution 	= new int[nMeetings];
+    	trail trail 	= new trail();
+    	Arrays.fill(solution, -1);
+    	if (search != Search.BACKTRACKING) {
+    		for (dateVar dom: domains) {
+    			dom.trail = trail;
+    		}
+    	}
+    	if (!backtracking(0, solution, domains, arcs, index, search, trail)) {return null;}
+    	
+    	ArrayList<LocalDate> result = new ArrayList<>();
+    	for (int day: solution) {
+    		result.add(rangeStart.plusDays(day));
+    	}
+    	return result;
     }
     
     /**
-     * Recursively finds a solution for the CSP
-     * @param nMeetings
-     * @param solution
+     * Recursively finds a solution for the CSP, assigning meetings in order and
+     * cutting a dead branch as soon as an assignment violates a constraint or,
+     * with propagation, leaves some unassigned meeting without a day
+     * @param var			The next meeting to assign
+     * @param solution		The day offset assigned to each meeting, -1 if none yet
      * @param domains
-     * @param constraints
-     * @return solution		either null, or a valid solution
+     * @param arcs			The binary constraints
+     * @param index			The constraints on each meeting, from constraintIndex
+     * @param search		How much to propagate after each assignment
+     * @param trail			The record of domain changes, undone after each day tried
+     * @return boolean		true once solution holds a valid assignment of every
+     * 						meeting, false if no assignment extends the current one
      */
-    private static ArrayList<LocalDate> backtracking(int nMeetings, ArrayList<LocalDate> solution, ArrayList<dateVar> domains, Set<DateConstraint> constraints) {
+    private static boolean backtracking(int var, int[] solution, ArrayList<dateVar> domains, List<BinaryDateConstraint> arcs, int[][] index, Search search, trail trail) {
     	//base case for recursion
-    	if (solution.size() == nMeetings) {
-    		if(isValidSolution(solution, constraints)) {return solution;}
-    		else {return null;}
+    	if (var == solution.length) {
+    		return true;
     	}
-    	for (LocalDate d: domains.get(solution.size()).domain) {
-    		solution.add(d);
-    		ArrayList<LocalDate> subSoln = backtracking(nMeetings, solution, domains, constraints);
-    		if (subSoln != null) {return subSoln;}
-    		solution.remove(solution.size() - 1);
+    	dateVar dom = domains.get(var);
+    	int 	mark = trail.mark();
+    	for (int d = dom.next(0); d >= 0; d = dom.next(d + 1)) {
+    		solution[var] = d;
+    		if (assign(var, d, solution, domains, arcs, index, search) && backtracking(var + 1, solution, domains, arcs, index, search, trail)) {
+    			return true;
+    		}
+    		trail.undo(mark);
     	}
-    	return null;
+    	solution[var] = -1;
+    	return false;
     }
     
     /**
-     * Analyzes a given terminal state of the CSP problem
-     * @param solution
-     * @param constraints
-     * @return boolean		true if the given solution is valid, false otherwise
+     * Gives a meeting a day and propagates it as far as search asks for. Without
+     * propagation the constraints to already assigned meetings are checked;
+     * with it, those hold already, since each assignment prunes its neighbors.
+     * @param var			The meeting to assign
+     * @param day			The day offset to give it, from its domain
+     * @param solution		The day offset assigned to each meeting, -1 if none yet
+     * @param domains
+     * @param arcs			The binary constraints
+     * @param index			The constraints on each meeting, from constraintIndex
+     * @param search		How much to propagate
+     * @return boolean		false if the assignment violates a constraint or
+     * 						empties a domain, true otherwise
      */
-    private static boolean isValidSolution(ArrayList<LocalDate> solution, Set<DateConstraint> constraints) {
-    	for (DateConstraint d : constraints) {
-            LocalDate leftDate = solution.get(d.L_VAL),
-                      rightDate = (d.arity() == 1) 
-                          ? ((UnaryDateConstraint) d).R_VAL 
-                          : solution.get(((BinaryDateConstraint) d).R_VAL);
-            
-            boolean sat = false;
-            switch (d.OP) {
-	            case "==": if (leftDate.isEqual(rightDate))  sat = true; break;
-	            case "!=": if (!leftDate.isEqual(rightDate)) sat = true; break;
-	            case ">":  if (leftDate.isAfter(rightDate))  sat = true; break;
-	            case "<":  if (leftDate.isBefore(rightDate)) sat = true; break;
-	            case ">=": if (leftDate.isAfter(rightDate) || leftDate.isEqual(rightDate))  sat = true; break;
-	            case "<=": if (leftDate.isBefore(rightDate) || leftDate.isEqual(rightDate)) sat = true; break;
-            }
-            if (!sat) {
-                return false;
-            }
+    private static boolean assign(int var, int day, int[] solution, ArrayList<dateVar> domains, List<BinaryDateConstraint> arcs, int[][] index, Search search) {
+    	switch (search) {
+    		case FORWARD_CHECKING:
+    			domains.get(var).retain(day, day);
+    			for (int c : index[var]) {
+    				BinaryDateConstraint d = arcs.get(c);
+    				int other = d.L_VAL == var ? d.R_VAL : d.L_VAL;
+    				if (solution[other] < 0 && prune(d.OP, domains.get(d.L_VAL), domains.get(d.R_VAL)) != 0
+    						&& (domains.get(other).isEmpty() || domains.get(var).isEmpty())) {
+    					return false;
+    				}
+    			}
+    			return true;
+    		case MAC:
+    			domains.get(var).retain(day, day);
+    			return propagate(domains, arcs, index, index[var]);
+    		default:
+    			return isConsistent(var, solution, arcs, index);
+    	}
+    }
+    
+    /**
+     * Checks the constraints on a newly assigned meeting whose other meeting is
+     * already assigned; unary constraints hold already, by node consistency
+     * @param var			The meeting just assigned
+     * @param solution		The day offset assigned to each meeting, -1 if none yet
+     * @param arcs			The binary constraints
+     * @param index			The constraints on each meeting, from constraintIndex
+     * @return boolean		true if none of those constraints is violated
+     */
+    private static boolean isConsistent(int var, int[] solution, List<BinaryDateConstraint> arcs, int[][] index) {
+    	for (int c : index[var]) {
+    		BinaryDateConstraint d = arcs.get(c);
+    		int left 	= solution[d.L_VAL];
+    		int right 	= solution[d.R_VAL];
+    		if (left < 0 || right < 0) {
+    			continue;
+    		}
+    		
+    		boolean sat = false;
+    		switch (d.OP) {
+    			case "==": sat = left == right; break;
+    			case "!=": sat = left != right; break;
+    			case ">":  sat = left > right;  break;
+    			case "<":  sat = left < right;  break;
+    			case ">=": sat = left >= right; break;
+    			case "<=": sat = left <= right; break;
+    		}
+    		if (!sat) {
+    			return false;
+    		}
     	}
     	return true;
     }
     
     /**
-     * Filters the domains of each meeting based on the UnaryDateConstraints
+     * Filters the domains of each meeting based on the UnaryDateConstraints,
+     * each of which keeps a single range of days (or drops a single day)
      * @param domains
+     * @param rangeStart	The date of day 0 in every domain
      * @param constraints
      */
-    private static void unaryFilter(ArrayList<dateVar> domains, Set<DateConstraint> constraints) {
+    private static void unaryFilter(ArrayList<dateVar> domains, LocalDate rangeStart, Set<DateConstraint> constraints) {
     	for (DateConstraint d : constraints) {
-            Set<LocalDate> curDom = domains.get(d.L_VAL).domain;
-            Set<LocalDate> removal = new HashSet<>();
             if (d.arity() == 1) {
-            	LocalDate r1 = ((UnaryDateConstraint) d).R_VAL;
+            	dateVar curDom 	= domains.get(d.L_VAL);
+            	long r1 		= ChronoUnit.DAYS.between(rangeStart, ((UnaryDateConstraint) d).R_VAL);
 				switch (d.OP) {
-			        case "==":
-			        	if (curDom.contains(r1)) {
-			        		curDom.clear();
-			        		curDom.add(r1);
-			        	} else {
-			        		curDom.clear();
-			        	}; break;
-			        case "!=": 
-			        	curDom.remove(r1); break;
-			        case ">":
-			        	for (LocalDate date: curDom) {
-			        		if (!date.isAfter(r1)) {
-			        			removal.add(date);
-			        		}
-			        	}
-			        	curDom.removeAll(removal); break;
-			        case "<":  
-			        	for (LocalDate date: curDom) {
-			        		if (!date.isBefore(r1)) {
-			        			removal.add(date);
-			        		}
-			        	}
-			        	curDom.removeAll(removal); break;
-			        case ">=": 
-			        	for (LocalDate date: curDom) {
-			        		if (date.isBefore(r1)) {
-			        			removal.add(date);
-			        		}
-			        	}
-			        	curDom.removeAll(removal); break;
-			        case "<=": 
-			        	for (LocalDate date: curDom) {
-			        		if (date.isAfter(r1)) {
-			        			removal.add(date);
-			        		}
-			        	}
-			        	curDom.removeAll(removal); break;
+			        case "==": curDom.retain(r1, r1); break;
+			        case "!=": curDom.remove(r1); break;
+			        case ">":  curDom.retain(r1 + 1, Long.MAX_VALUE); break;
+			        case "<":  curDom.retain(Long.MIN_VALUE, r1 - 1); break;
+			        case ">=": curDom.retain(r1, Long.MAX_VALUE); break;
+			        case "<=": curDom.retain(Long.MIN_VALUE, r1); break;
 		        }
             }
         }
     }
     
     /**
-     * Filters the domains of each meeting based on the BinaryDateConstraints... sorry for the dry code
-     * @param domains
      * @param constraints
+     * @return arcs		the BinaryDateConstraints among constraints, in a list
+     * 					whose indices name them in the constraint index
      */
-    private static void binaryFilter(ArrayList<dateVar> domains, Set<DateConstraint> constraints) {
+    private static ArrayList<BinaryDateConstraint> binaryConstraints(Set<DateConstraint> constraints) {
+    	ArrayList<BinaryDateConstraint> arcs = new ArrayList<>();
     	for (DateConstraint d : constraints) {
-            Set<LocalDate> curDom = domains.get(d.L_VAL).domain;
-            Set<LocalDate> removal = new HashSet<>();
-            if (d.arity() == 2) {
-            	Set<LocalDate> r2 = domains.get(((BinaryDateConstraint) d).R_VAL).domain;
-            	switch (d.OP) {
-    	            case "==":
-    	            	curDom.retainAll(r2);
-    	            	r2.retainAll(curDom);
-    	            ; break;
-    	            case ">":
-    	            	for (LocalDate date: curDom) {
-    	            		boolean found = false;
-    	            		for (LocalDate date2: r2) {
-    	            			if (date.isAfter(date2)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date);}
-    	            	}
-    	            	curDom.removeAll(removal);
-    	            	removal.clear();
-    	            	for (LocalDate date2: r2) {
-    	            		boolean found = false;
-    	            		for (LocalDate date: curDom) {
-    	            			if (date2.isBefore(date)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date2);} 
-    	            	}
-    	            	r2.removeAll(removal);
-    	            	removal.clear();
-    	            ; break;
-    	            case "<":
-    	            	for (LocalDate date: curDom) {
-    	            		boolean found = false;
-    	            		for (LocalDate date2: r2) {
-    	            			if (date.isBefore(date2)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date);}
-    	            	}
-    	            	curDom.removeAll(removal);
-    	            	removal.clear();
-    	            	for (LocalDate date2: r2) {
-    	            		boolean found = false;
-    	            		for (LocalDate date: curDom) {
-    	            			if (date2.isAfter(date)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date2);} 
-    	            	}
-    	            	r2.removeAll(removal);
-    	            	removal.clear();
-    	            ; break;
-    	            case ">=":
-    	            	for (LocalDate date: curDom) {
-    	            		boolean found = false;
-    	            		for (LocalDate date2: r2) {
-    	            			if (!date.isBefore(date2)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date);}
-    	            	}
-    	            	curDom.removeAll(removal);
-    	            	removal.clear();
-    	            	for (LocalDate date2: r2) {
-    	            		boolean found = false;
-    	            		for (LocalDate date: curDom) {
-    	            			if (!date2.isAfter(date)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date2);} 
-    	            	}
-    	            	r2.removeAll(removal);
-    	            	removal.clear();
-    	            ; break;
-    	            case "<=":
-    	            	for (LocalDate date: curDom) {
-    	            		boolean found = false;
-    	            		for (LocalDate date2: r2) {
-    	            			if (!date.isAfter(date2)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date);}
-    	            	}
-    	            	curDom.removeAll(removal);
-    	            	removal.clear();
-    	            	for (LocalDate date2: r2) {
-    	            		boolean found = false;
-    	            		for (LocalDate date: curDom) {
-    	            			if (!date2.isBefore(date)) {
-    	            				found = true;
-    	            			}
-    	            		}
-    	            		if (!found) {removal.add(date2);} 
-    	            	}
-    	            	r2.removeAll(removal);
-    	            	removal.clear();
-    	            ; break;
-            	}
-            }
-        }
+    		if (d.arity() == 2) {
+    			arcs.add((BinaryDateConstraint) d);
+    		}
+    	}
+    	return arcs;
+    }
+    
+    /**
+     * Indexes the binary constraints by the variables they constrain
+     * @param nMeetings
+     * @param arcs		The binary constraints
+     * @return index	index[v] holds the indices in arcs of every constraint on v
+     */
+    private static int[][] constraintIndex(int nMeetings, List<BinaryDateConstraint> arcs) {
+    	int[] degree = new int[nMeetings];
+    	for (BinaryDateConstraint d : arcs) {
+    		degree[d.L_VAL]++;
+    		degree[d.R_VAL]++;
+    	}
+    	int[][] index = new int[nMeetings][];
+    	for (int v = 0; v < nMeetings; v++) {
+    		index[v] = new int[degree[v]];
+    		degree[v] = 0;
+    	}
+    	for (int c = 0; c < arcs.size(); c++) {
+    		BinaryDateConstraint d = arcs.get(c);
+    		index[d.L_VAL][degree[d.L_VAL]++] = c;
+    		index[d.R_VAL][degree[d.R_VAL]++] = c;
+    	}
+    	return index;
+    }
+    
+    /**
+     * AC-3 over the binary constraints: prunes each constraint on the worklist,
+     * and puts back every constraint on a variable whose domain shrank, until
+     * no domain changes or one runs out of days
+     * @param domains
+     * @param arcs		The binary constraints
+     * @param index		The constraints on each variable, from constraintIndex
+     * @param start		Indices in arcs of the constraints to check first
+     * @return boolean	false if some domain was emptied, true otherwise
+     */
+    private static boolean propagate(ArrayList<dateVar> domains, List<BinaryDateConstraint> arcs, int[][] index, int[] start) {
+    	int 		n 		= arcs.size();
+    	int[] 		queue 	= new int[n];  //a ring buffer, holding each constraint at most once
+    	boolean[] 	queued 	= new boolean[n];
+    	int 		head 	= 0, count = 0;
+    	for (int c : start) {
+    		if (!queued[c]) {
+    			queued[c] = true;
+    			queue[(head + count++) % n] = c;
+    		}
+    	}
+    	
+    	while (count > 0) {
+    		int c 	= queue[head];
+    		head 	= (head + 1) % n;
+    		count--;
+    		queued[c] = false;
+    		
+    		BinaryDateConstraint d = arcs.get(c);
+    		int changed = prune(d.OP, domains.get(d.L_VAL), domains.get(d.R_VAL));
+    		for (int side = 0; side < 2; side++) {
+    			if ((changed & (1 << side)) == 0) {
+    				continue;
+    			}
+    			int v = side == 0 ? d.L_VAL : d.R_VAL;
+    			if (domains.get(v).isEmpty()) {
+    				return false;
+    			}
+    			//!= may need another look at its own constraint, so c goes back too
+    			for (int c2 : index[v]) {
+    				if (!queued[c2]) {
+    					queued[c2] = true;
+    					queue[(head + count++) % n] = c2;
+    				}
+    			}
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * Removes the days of either domain with no supporting day in the other.
+     * An ordering constraint is supported by the other domain's min or max
+     * alone, so each side is cut down to a single range without looking at
+     * individual days. A != constraint only rules out the other side's day
+     * once that side is down to a single day.
+     * @param op		The constraint's operator
+     * @param left		The domain of the left operand
+     * @param right		The domain of the right operand
+     * @return changed	bit 0 set if left shrank, bit 1 set if right shrank
+     */
+    private static int prune(String op, dateVar left, dateVar right) {
+    	boolean l = false, r = false;
+    	switch (op) {
+    		case "==":
+    			l = left.retainAll(right);
+    			r = right.retainAll(left);
+    			break;
+    		case "!=":
+    			if (right.min == right.max) {l = left.remove(right.min);}
+    			if (left.min == left.max) 	{r = right.remove(left.min);}
+    			break;
+    		case ">":
+    			l = left.retain(right.min + 1L, Long.MAX_VALUE);
+    			r = right.retain(Long.MIN_VALUE, left.max - 1L);
+    			break;
+    		case "<":
+    			l = left.retain(Long.MIN_VALUE, right.max - 1L);
+    			r = right.retain(left.min + 1L, Long.MAX_VALUE);
+    			break;
+    		case ">=":
+    			l = left.retain(right.min, Long.MAX_VALUE);
+    			r = right.retain(Long.MIN_VALUE, left.max);
+    			break;
+    		case "<=":
+    			l = left.retain(Long.MIN_VALUE, right.max);
+    			r = right.retain(left.min, Long.MAX_VALUE);
+    			break;
+    	}
+    	return (l ? 1 : 0) | (r ? 2 : 0);
     }
     
     /**
      * Creates dateVars with domains representing the whole date range of the CSP
      * @param nMeetings
-     * @param rangeStart
-     * @param rangeEnd
-     * @param curr
+     * @param days			The number of days in the range
      * @return result 		an arrayList of dateVars where each dateVar 
      * 						represents the entire range of dates for the CSP
      */
-    private static ArrayList<dateVar> createDomains(int nMeetings, LocalDate rangeStart, LocalDate rangeEnd, LocalDate curr) {
+    private static ArrayList<dateVar> createDomains(int nMeetings, int days) {
     	ArrayList<dateVar> 	result 			= new ArrayList<>();
-    	Set<LocalDate> 		possibleDomain 	= new HashSet<LocalDate>();
-    	
-    	//adding all dates within range
-    	while (!curr.equals(rangeEnd.plusDays(1))) {
-    		possibleDomain.add(curr);
-    		curr = curr.plusDays(1);
-    	}
+    	dateVar 			possibleDomain 	= new dateVar(days);
     	
     	//creating new dateVars
     	for (int i = 0; i < nMeetings; i++) {
-    		result.add(new dateVar(new HashSet<LocalDate>(possibleDomain)));
+    		result.add(new dateVar(possibleDomain));
     	}
     	return result;
     }
     
     /**
      * An object that represents the domain of possible dates
-     * for each meeting in the CSP
-     * Takes in a set of LocalDates for the constructor
+     * for each meeting in the CSP, as a bitset of day offsets from
+     * rangeStart: bit i of the domain is set while rangeStart + i days
+     * is still possible. Filters mask whole words at a time, and copying
+     * a domain is a single array copy. The first and last days left are
+     * kept up to date alongside the bits, for the ordering constraints.
      */
     private static class dateVar {
-    	Set<LocalDate> domain;
+    	final long[] 	domain;
+    	final int 		days;
+    	int 			min; 	//first day left, or days if empty
+    	int 			max; 	//last day left, or -1 if empty
+    	trail 			trail; 	//records each change for undo during search, or null
+    	
+    	/**
+    	 * Constructs a domain holding every day in [0, days)
+    	 * @param days	The number of days in the range
+    	 */
+    	dateVar(int days) {
+    		this.days 	= Math.max(days, 0);
+    		this.domain = new long[(this.days + 63) >>> 6];
+    		Arrays.fill(domain, -1L);
+    		if ((this.days & 63) != 0) {
+    			domain[domain.length - 1] = (1L << this.days) - 1;
+    		}
+    		this.min = 0;
+    		this.max = this.days - 1;
+    	}
+    	
+    	/**
+    	 * Constructs a copy of the given domain
+    	 * @param other	The domain to copy
+    	 */
+    	dateVar(dateVar other) {
+    		this.days 	= other.days;
+    		this.domain = other.domain.clone();
+    		this.min 	= other.min;
+    		this.max 	= other.max;
+    	}
+    	
+    	/**
+    	 * @param day	A day offset, possibly outside the range
+    	 * @return true if day is still in the domain
+    	 */
+    	boolean contains(long day) {
+    		return day >= 0 && day < days && (domain[(int) (day >>> 6)] & (1L << day)) != 0;
+    	}
+    	
+    	/**
+    	 * Removes the given day, if present
+    	 * @param day	A day offset, possibly outside the range
+    	 * @return true if the day was removed
+    	 */
+    	boolean remove(long day) {
+    		if (!contains(day)) {
+    			return false;
+    		}
+    		int w = (int) (day >>> 6);
+    		set(w, domain[w] & ~(1L << day));
+    		if (day == min || day == max) {
+    			saveBounds();
+    			refresh();
+    		}
+    		return true;
+    	}
+    	
+    	/**
+    	 * Removes every day outside [lo, hi]
+    	 * @param lo	The first day to keep, possibly outside the range
+    	 * @param hi	The last day to keep, possibly outside the range
+    	 * @return true if any day was removed
+    	 */
+    	boolean retain(long lo, long hi) {
+    		if (isEmpty() || (lo <= min && hi >= max)) {
+    			return false;
+    		}
+    		saveBounds();
+    		if (lo > hi || hi < min || lo > max) {
+    			for (int w = min >>> 6; w <= max >>> 6; w++) {
+    				set(w, 0);
+    			}
+    			min = days;
+    			max = -1;
+    			return true;
+    		}
+    		int first 	= (int) Math.max(lo, min);
+    		int last 	= (int) Math.min(hi, max);
+    		int fw 		= first >>> 6, lw = last >>> 6;
+    		for (int w = min >>> 6; w < fw; w++) {
+    			set(w, 0);
+    		}
+    		for (int w = lw + 1; w <= max >>> 6; w++) {
+    			set(w, 0);
+    		}
+    		set(fw, domain[fw] & (-1L << first));
+    		set(lw, domain[lw] & (-1L >>> (63 - (last & 63))));
+    		min = first;
+    		max = last;
+    		refresh();
+    		return true;
+    	}
+    	
+    	/**
+    	 * Removes every day not also in other
+    	 * @param other	A domain over the same range
+    	 * @return true if any day was removed
+    	 */
+    	boolean retainAll(dateVar other) {
+    		if (isEmpty()) {
+    			return false;
+    		}
+    		boolean changed = false;
+    		for (int w = min >>> 6; w <= max >>> 6; w++) {
+    			long word = domain[w] & other.domain[w];
+    			if (word != domain[w]) {
+    				set(w, word);
+    				changed = true;
+    			}
+    		}
+    		if (changed) {
+    			saveBounds();
+    			refresh();
+    		}
+    		return changed;
+    	}
+    	
+    	/**
+    	 * @param from	The first day offset to look at
+    	 * @return the first day at or after from still in the domain, or -1
+    	 */
+    	int next(int from) {
+    		if (from >= days) {
+    			return -1;
+    		}
+    		int w 		= from >>> 6;
+    		long word 	= domain[w] & (-1L << from);
+    		while (word == 0) {
+    			if (++w == domain.length) {
+    				return -1;
+    			}
+    			word = domain[w];
+    		}
+    		return (w << 6) + Long.numberOfTrailingZeros(word);
+    	}
+    	
+    	/**
+    	 * @param from	The last day offset to look at
+    	 * @return the last day at or before from still in the domain, or -1
+    	 */
+    	int prev(int from) {
+    		if (from < 0) {
+    			return -1;
+    		}
+    		from 		= Math.min(from, days - 1);
+    		int w 		= from >>> 6;
+    		long word 	= domain[w] & (-1L >>> (63 - (from & 63)));
+    		while (word == 0) {
+    			if (--w < 0) {
+    				return -1;
+    			}
+    			word = domain[w];
+    		}
+    		return (w << 6) + 63 - Long.numberOfLeadingZeros(word);
+    	}
+    	
+    	/**
+    	 * Overwrites one word of the domain, saving the old word to the trail
+    	 * @param w		Index of the word
+    	 * @param word	Its new bits
+    	 */
+    	private void set(int w, long word) {
+    		if (trail != null) {
+    			trail.save(this, w, domain[w]);
+    		}
+    		domain[w] = word;
+    	}
+    	
+    	/**
+    	 * Saves min and max to the trail ahead of a change to either
+    	 */
+    	private void saveBounds() {
+    		if (trail != null) {
+    			trail.save(this, -1, ((long) min << 32) | (max & 0xFFFFFFFFL));
+    		}
+    	}
+    	
+    	/**
+    	 * Moves min and max inwards to the first and last days still set
+    	 */
+    	private void refresh() {
+    		min = next(min);
+    		if (min < 0) {
+    			min = days;
+    			max = -1;
+    		} else {
+    			max = prev(max);
+    		}
+    	}
+    	
+    	/**
+    	 * @return true if no day is left in the domain
+    	 */
+    	boolean isEmpty() {
+    		return min > max;
+    	}
+    }
+    
+    /**
+     * The changes made to the domains during search, each kept as the word
+     * (or the min and max) it overwrote, so that everything pruned below a
+     * point in the search can be put back in reverse order when it backtracks
+     */
+    private static class trail {
+    	dateVar[] 	vars 	= new dateVar[256];
+    	int[] 		words 	= new int[256];  	//index of the saved word, or -1 for min and max
+    	long[] 		olds 	= new long[256];  	//the saved word, or min << 32 | max
+    	int 		size;
+    	
+    	/**
+    	 * @param var	The domain about to change
+    	 * @param word	Index of the word about to change, or -1 for min and max
+    	 * @param old	The value being overwritten
+    	 */
+    	void save(dateVar var, int word, long old) {
+    		if (size == vars.length) {
+    			vars 	= Arrays.copyOf(vars, size * 2);
+    			words 	= Arrays.copyOf(words, size * 2);
+    			olds 	= Arrays.copyOf(olds, size * 2);
+    		}
+    		vars[size] 	= var;
+    		words[size] = word;
+    		olds[size] 	= old;
+    		size++;
+    	}
+    	
+    	/**
+    	 * @return a mark to undo back to
+    	 */
+    	int mark() {
+    		return size;
+    	}
     	
-    	dateVar(Set<LocalDate> domain) {
-    		this.domain = domain;
+    	/**
+    	 * Restores every change saved since the given mark, newest first
+    	 * @param mark	A value returned by mark
+    	 */
+    	void undo(int mark) {
+    		while (size > mark) {
+    			size--;
+    			dateVar var = vars[size];
+    			if (words[size] < 0) {
+    				var.min = (int) (olds[size] >>> 32);
+    				var.max = (int) olds[size];
+    			} else {
+    				var.domain[words[size]] = olds[size];
+    			}
+    			vars[size] = null;
+    		}
     	}
     }
-}
\ No newline at end of file
+}
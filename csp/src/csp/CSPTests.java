@@ -10,6 +10,7 @@ import java.util.Set;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 
 public class CSPTests {
     
@@ -307,4 +308,164 @@ public class CSPTests {
         testSolution(solution, constraints);
     }
     
+    @Test
+    public void CSP_t10() {
+        Set<DateConstraint> constraints = new HashSet<>();
+        for (int i = 0; i < 200; i += 2) {
+            constraints.add(new UnaryDateConstraint(i, ">=", LocalDate.of(2019 + i % 4, 1 + i % 12, 1)));
+            constraints.add(new UnaryDateConstraint(i, "!=", LocalDate.of(2019 + i % 4, 1 + i % 12, 1)));
+            constraints.add(new UnaryDateConstraint(i + 1, "<", LocalDate.of(2023, 6, 1)));
+            constraints.add(new BinaryDateConstraint(i, "==", i + 1));
+        }
+        
+        // 200 meetings over a five year window, which is a lot of days to
+        // hold in each domain
+        List<LocalDate> solution = CSP.solve(
+            200,
+            LocalDate.of(2019, 1, 1),
+            LocalDate.of(2023, 12, 31),
+            constraints
+        );
+        
+        testSolution(solution, constraints);
+    }
+    
+    @Test
+    public void CSP_t11() {
+        Set<DateConstraint> constraints = new HashSet<>();
+        String[] ops = {"<", ">", "<=", ">="};
+        for (int i = 0; i < 300; i += 2) {
+            LocalDate day = LocalDate.of(2019, 1, 1).plusDays(6 * i);
+            String op = ops[i / 2 % 4];
+            // Each pair is pinned to one ordering by a pair of unary bounds
+            boolean leftLow = op.startsWith("<");
+            int gap = op.length() == 1 ? 1 : 0;
+            constraints.add(new UnaryDateConstraint(i, leftLow ? ">=" : "<=", leftLow ? day : day.plusDays(gap)));
+            constraints.add(new UnaryDateConstraint(i + 1, leftLow ? "<=" : ">=", leftLow ? day.plusDays(gap) : day));
+            constraints.add(new BinaryDateConstraint(i, op, i + 1));
+        }
+        
+        // 150 ordered pairs over a five year window: the ordering constraints
+        // have to be filtered by their bounds, not day by day
+        List<LocalDate> solution = CSP.solve(
+            300,
+            LocalDate.of(2019, 1, 1),
+            LocalDate.of(2023, 12, 31),
+            constraints
+        );
+        
+        testSolution(solution, constraints);
+    }
+    
+    @Test
+    public void CSP_t12() {
+        Set<DateConstraint> constraints = new HashSet<>();
+        for (int i = 0; i + 1 < 60; i++) {
+            constraints.add(i % 2 == 0
+                ? new BinaryDateConstraint(i, "<", i + 1)
+                : new BinaryDateConstraint(i + 1, ">", i));
+        }
+        constraints.add(new BinaryDateConstraint(60, "!=", 0));
+        constraints.add(new BinaryDateConstraint(60, "<=", 1));
+        
+        // A chain of 60 meetings over 60 days leaves exactly one day for
+        // each, but only once the pruning reaches both ends of the chain;
+        // meeting 60 is then left with day 2 through != and <=
+        List<LocalDate> solution = CSP.solve(
+            61,
+            LocalDate.of(2019, 1, 1),
+            LocalDate.of(2019, 3, 1),
+            constraints
+        );
+        
+        testSolution(solution, constraints);
+        assertEquals(LocalDate.of(2019, 1, 2), solution.get(60));
+        
+        // One more day of meeting 60's chain than fits in the window
+        constraints.add(new BinaryDateConstraint(60, "<", 0));
+        assertNull(CSP.solve(61, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 3, 1), constraints));
+    }
+    
+    @Test
+    public void CSP_t13() {
+        Set<DateConstraint> constraints = new HashSet<>();
+        for (int i = 0; i < 40; i++) {
+            constraints.add(new BinaryDateConstraint(i, "!=", (i + 1) % 40));
+        }
+        
+        // A ring of 40 meetings over 2 days, neighbors apart: every domain is
+        // arc consistent, so only checking as the search goes can find the
+        // alternating solution in time
+        List<LocalDate> solution = CSP.solve(
+            40,
+            LocalDate.of(2019, 1, 1),
+            LocalDate.of(2019, 1, 2),
+            constraints
+        );
+        
+        testSolution(solution, constraints);
+        
+        // With 41 meetings in the ring, no alternation exists
+        constraints.clear();
+        for (int i = 0; i < 41; i++) {
+            constraints.add(new BinaryDateConstraint(i, "!=", (i + 1) % 41));
+        }
+        assertNull(CSP.solve(41, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 1, 2), constraints));
+    }
+    
+    @Test
+    public void CSP_t14() {
+        Set<DateConstraint> constraints = new HashSet<>();
+        for (int i = 0; i < 302; i++) {
+            constraints.add(new UnaryDateConstraint(i, "<=", LocalDate.of(2019, 1, 2)));
+        }
+        DateConstraint twoDays = new UnaryDateConstraint(302, "<=", LocalDate.of(2019, 1, 2));
+        constraints.add(twoDays);
+        constraints.add(new BinaryDateConstraint(0, "!=", 1));
+        constraints.add(new BinaryDateConstraint(0, "!=", 302));
+        constraints.add(new BinaryDateConstraint(1, "!=", 302));
+        
+        // Meetings 0, 1 and 302 must all differ over 2 days, with 300 free
+        // meetings in between: checking only assigned meetings tries 2^300
+        // ways to place those before reaching 302, while forward checking
+        // and MAC see 302 run out of days as soon as 1 is placed
+        for (CSP.Search search: Arrays.asList(CSP.Search.FORWARD_CHECKING, CSP.Search.MAC)) {
+            assertNull(CSP.solve(303, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 1, 3), constraints, search));
+        }
+        
+        // Given a third day, 302 fits
+        constraints.remove(twoDays);
+        for (CSP.Search search: CSP.Search.values()) {
+            List<LocalDate> solution = CSP.solve(303, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 1, 3), constraints, search);
+            testSolution(solution, constraints);
+        }
+    }
+    
+    @Test
+    public void CSP_t15() {
+        // Small random problems, where every search must agree on whether
+        // there is a solution, and undoing its pruning must lose none
+        String[] ops = {"==", "!=", "<", "<=", ">", ">="};
+        Random rng = new Random(282);
+        for (int trial = 0; trial < 300; trial++) {
+            Set<DateConstraint> constraints = new HashSet<>();
+            for (int c = rng.nextInt(10); c > 0; c--) {
+                int l = rng.nextInt(6), r = rng.nextInt(6);
+                if (l != r) {
+                    constraints.add(new BinaryDateConstraint(l, ops[rng.nextInt(6)], r));
+                } else {
+                    constraints.add(new UnaryDateConstraint(l, ops[rng.nextInt(6)], LocalDate.of(2019, 1, 1 + rng.nextInt(7))));
+                }
+            }
+            boolean solvable = CSP.solve(6, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 1, 5), constraints, CSP.Search.BACKTRACKING) != null;
+            for (CSP.Search search: CSP.Search.values()) {
+                List<LocalDate> solution = CSP.solve(6, LocalDate.of(2019, 1, 1), LocalDate.of(2019, 1, 5), constraints, search);
+                assertTrue(search + " " + constraints, solvable == (solution != null));
+                if (solution != null) {
+                    testSolution(solution, constraints);
+                }
+            }
+        }
+    }
+    
 }
@@ -0,0 +1,223 @@
+package huffman;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks for building Huffman models and for compress / decompress,
+ * over every combination of input size and kind of data. Besides ops/s, each
+ * benchmark reports an "bytes" counter as a rate, the throughput in bytes of
+ * input (two per char) per second, and prints the compression ratio of its
+ * input at the end of each trial. Run with the gc profiler for allocation
+ * rates, either through main or the JMH command line:
+ * 
+ *     java -cp <classes:jmh jars> org.openjdk.jmh.Main HuffmanBenchmark -prof gc
+ * 
+ * The sources live outside src so that the main build never needs JMH on its
+ * classpath; they compile against huffman/src with the JMH core and
+ * annotation processor jars.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms4g", "-Xmx4g"})
+public class HuffmanBenchmark {
+    
+    /**
+     * Message length in chars: tiny, 1K, 1M and 100M
+     */
+    @Param({"16", "1024", "1048576", "104857600"})
+    public int size;
+    
+    /**
+     * english: words drawn with Zipf frequencies; skewed: geometric letters;
+     * random: uniform bytes; single: one repeated symbol
+     */
+    @Param({"english", "skewed", "random", "single"})
+    public String data;
+    
+    private String  message;
+    private Huffman model;
+    private byte[]  compressed;
+    private byte[]  interleaved;
+    private ByteBuffer pooled;
+    private char[]     chars;
+    
+    /**
+     * Input bytes processed, reported by JMH as a rate next to ops/s
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Bytes {
+        public long bytes;
+    }
+    
+    @Setup(Level.Trial)
+    public void setup () {
+        message     = generate(data, size, new Random(282));
+        model       = new Huffman(message);
+        compressed  = model.compress(message);
+        interleaved = model.compressInterleaved(message);
+        pooled      = ByteBuffer.allocateDirect(compressed.length);
+        pooled.put(compressed).flip();
+        chars       = new char[size];
+    }
+    
+    @TearDown(Level.Trial)
+    public void report () {
+        System.out.printf("%n%s x %d: ratio %.4f (%d compressed bytes per %d input bytes)%n",
+            data, size, compressed.length / (2.0 * size), compressed.length, 2L * size);
+    }
+    
+    @Benchmark
+    public Huffman construct (Bytes counter) {
+        counter.bytes += 2L * size;
+        return new Huffman(message);
+    }
+    
+    @Benchmark
+    public byte[] compress (Bytes counter) {
+        counter.bytes += 2L * size;
+        return model.compress(message);
+    }
+    
+    @Benchmark
+    public byte[] compressInterleaved (Bytes counter) {
+        counter.bytes += 2L * size;
+        return model.compressInterleaved(message);
+    }
+    
+    @Benchmark
+    public String decompress (Bytes counter) {
+        counter.bytes += 2L * size;
+        return model.decompress(compressed);
+    }
+    
+    /**
+     * compress into a pooled direct buffer, as on a network write path
+     */
+    @Benchmark
+    public int compressBuffer (Bytes counter) {
+        counter.bytes += 2L * size;
+        pooled.clear();
+        return model.compress(message, pooled);
+    }
+    
+    /**
+     * decompress from a pooled direct buffer into a pooled char[]
+     */
+    @Benchmark
+    public int decompressBuffer (Bytes counter) {
+        counter.bytes += 2L * size;
+        pooled.rewind();
+        return model.decompress(pooled, chars);
+    }
+    
+    /**
+     * Baseline for decompress: one decode table probe per character rather
+     * than per run of characters
+     */
+    @Benchmark
+    public String decompressBySymbol (Bytes counter) {
+        counter.bytes += 2L * size;
+        return model.decompressBySymbol(compressed);
+    }
+    
+    /**
+     * The same codes as decompress, with each block split into interleaved
+     * sub-streams that decode in lockstep
+     */
+    @Benchmark
+    public String decompressInterleaved (Bytes counter) {
+        counter.bytes += 2L * size;
+        return model.decompressInterleaved(interleaved);
+    }
+    
+    /**
+     * @param kind One of the data params
+     * @param length Number of chars to generate
+     * @param rng Source of randomness, seeded for repeatable inputs
+     * @return A message of the given kind and length
+     */
+    static String generate (String kind, int length, Random rng) {
+        StringBuilder result = new StringBuilder(length);
+        switch (kind) {
+            case "english":
+                //word ranks follow Zipf's law: rank r is drawn ~ 1/r
+                String[] words = ("the of and to a in is you that it he was for on are as with his they I at be "
+                    + "this have from or one had by word but not what all were we when your can said there use an "
+                    + "each which she do how their if will up other about out many then them these so some her "
+                    + "would make like him into time has look two more write go see number no way could people "
+                    + "my than first water been call who oil its now find long down day did get come made may part")
+                    .split(" ");
+                double norm = 0;
+                for (int r = 1; r <= words.length; r++) {
+                    norm += 1.0 / r;
+                }
+                while (result.length() < length) {
+                    double u = rng.nextDouble() * norm;
+                    int r = 0;
+                    while (r < words.length - 1 && (u -= 1.0 / (r + 1)) > 0) {
+                        r++;
+                    }
+                    result.append(words[r]).append(rng.nextInt(12) == 0 ? ". " : " ");
+                }
+                result.setLength(length);
+                break;
+            case "skewed":
+                for (int i = 0; i < length; i++) {
+                    int c = 0;
+                    while (c < 25 && rng.nextBoolean()) {
+                        c++;
+                    }
+                    result.append((char) ('a' + c));
+                }
+                break;
+            case "random":
+                for (int i = 0; i < length; i++) {
+                    result.append((char) rng.nextInt(256));
+                }
+                break;
+            case "single":
+                for (int i = 0; i < length; i++) {
+                    result.append('a');
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown data: " + kind);
+        }
+        return result.toString();
+    }
+    
+    public static void main (String[] args) throws RunnerException {
+        Options options = new OptionsBuilder()
+            .include(HuffmanBenchmark.class.getSimpleName())
+            .addProfiler(GCProfiler.class)
+            .build();
+        new Runner(options).run();
+    }
+    
+}
@@ -0,0 +1,108 @@
+package huffman;
+
+import java.util.Arrays;
+
+/**
+ * AdaptiveCode is the Huffman code of an adaptive stream: after every block
+ * it is rebuilt from live character counts, in which older blocks count for
+ * exponentially less, so the code follows a drifting distribution. Writer
+ * and reader each keep their own AdaptiveCode and update it with the same
+ * blocks, so the codes stay in step without ever being transmitted.
+ * 
+ * Characters the code does not (yet) hold are sent as an escape code
+ * followed by the raw 16-bit character, and join the code from the next
+ * block on.
+ */
+class AdaptiveCode {
+    
+    /**
+     * Characters per block (and so per re-model) in adaptive streams; short
+     * enough to follow drift closely, long enough to amortize each rebuild
+     */
+    static final int BLOCK_SIZE = 1 << 13;
+    
+    private long[]    counts;
+    private CodeTable table;
+    private int       escape;       // symbol of the escape code: one past the largest counted char
+    private int       novel;        // characters escaped so far in the current block
+    
+    /**
+     * Constructs a new AdaptiveCode whose first block uses the given model's
+     * character distribution
+     * @param seed The Huffman instance whose corpus counts seed the stream
+     */
+    AdaptiveCode (Huffman seed) {
+        counts = seed.corpusCounts();
+        rebuild();
+    }
+    
+    /**
+     * Writes the code for the given character, escaping it if need be
+     * @param c The character to encode
+     * @param out The bit stream being written
+     */
+    void encode (char c, BitWriter out) {
+        if (c < escape && table.contains(c)) {
+            table.encode(c, out);
+            return;
+        }
+        table.encode(escape, out);
+        out.write(c, 16);
+        novel++;
+    }
+    
+    /**
+     * Reads one character, following an escape code to its raw character
+     * @param in The bit stream being decoded
+     * @return The decoded character
+     */
+    char decode (BitReader in) {
+        int symbol = table.decode(in);
+        if (symbol != escape) {
+            return (char) symbol;
+        }
+        char c = (char) in.peek(16);
+        in.skip(16);
+        novel++;
+        return c;
+    }
+    
+    /**
+     * Halves the weight of everything counted so far (rounding down, so that
+     * characters long unseen decay to 0 and leave the code, to be escaped
+     * again), counts the given block, and rebuilds the code for the next block
+     * @param block The characters just encoded or decoded
+     * @param length Number of characters in block
+     */
+    void update (char[] block, int length) {
+        for (int c = 0; c < counts.length; c++) {
+            counts[c] >>= 1;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = block[i];
+            if (c >= counts.length) {
+                counts = Arrays.copyOf(counts, Math.max(c + 1, counts.length * 2));
+            }
+            counts[c]++;
+        }
+        rebuild();
+    }
+    
+    /**
+     * Builds the code for the current counts plus an escape symbol, weighted
+     * by how many characters the last block had to escape
+     */
+    private void rebuild () {
+        int size = counts.length;
+        while (size > 0 && counts[size - 1] == 0) {
+            size--;
+        }
+        escape = size;
+        
+        long[] weights  = Arrays.copyOf(counts, size + 1);
+        weights[escape] = 1 + novel;
+        table = CodeTable.canonical(CodeLengths.limited(weights, CodeTable.MAX_CODE_LENGTH));
+        novel = 0;
+    }
+    
+}
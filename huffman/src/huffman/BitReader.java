@@ -0,0 +1,219 @@
+package huffman;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * BitReader walks a byte array (or ByteBuffer) most significant bit first, keeping up
+ * to 64 upcoming bits left-aligned in an accumulator so that decoders
+ * can peek at a whole table index in one shift. Reading past the end
+ * of the array yields 0 bits, matching the padding written by BitWriter.
+ */
+class BitReader {
+
+    private final byte[]     buffer;
+    private final ByteBuffer source;        // read instead of buffer when buffer is null
+    private final ByteBuffer words;         // big-endian view of either, for whole-word refills
+    private final int        limit;
+    private int              position;
+    private long             accumulator;
+    private int              available;     // meaningful bits at the top of the accumulator
+
+    /**
+     * Constructs a new BitReader over buffer[offset, limit)
+     * @param buffer The bytes to read
+     * @param offset Index of the first byte to read
+     * @param limit Index one past the last byte to read
+     */
+    BitReader (byte[] buffer, int offset, int limit) {
+        this.buffer   = buffer;
+        this.source   = null;
+        this.words    = ByteBuffer.wrap(buffer);
+        this.position = offset;
+        this.limit    = limit;
+    }
+
+    /**
+     * Constructs a new BitReader over source[offset, limit), such as a
+     * direct or memory-mapped buffer, using absolute gets so that the
+     * buffer's own position is left untouched
+     * @param source The bytes to read
+     * @param offset Index of the first byte to read
+     * @param limit Index one past the last byte to read
+     */
+    BitReader (ByteBuffer source, int offset, int limit) {
+        this.buffer   = null;
+        this.source   = source;
+        this.words    = source.duplicate().order(ByteOrder.BIG_ENDIAN);
+        this.position = offset;
+        this.limit    = limit;
+    }
+
+    /**
+     * Returns the next n bits without consuming them
+     * @param n Number of bits to peek, from 1 to 57
+     * @return The next n bits, right-aligned
+     */
+    long peek (int n) {
+        if (available < n) {
+            refill();
+        }
+        return accumulator >>> (64 - n);
+    }
+
+    /**
+     * Consumes n bits that have already been peeked at
+     * @param n Number of bits to skip, at most the n of the last peek
+     */
+    void skip (int n) {
+        accumulator <<= n;
+        available -= n;
+    }
+
+    /**
+     * @return The next bit in the stream, 0 or 1
+     */
+    int readBit () {
+        int bit = (int) peek(1);
+        skip(1);
+        return bit;
+    }
+
+    /**
+     * Skips the rest of a partially read byte, so that the next read starts
+     * on a byte boundary
+     */
+    void align () {
+        skip(available & 7);
+    }
+
+    /**
+     * @return Index of the first byte none of whose bits have been read yet,
+     *         which is where the next read starts once the reader is aligned
+     */
+    int bytePosition () {
+        return position - (available >> 3);
+    }
+
+    /**
+     * @return Index of the next bit to be read, counted from bit 0 of the buffer
+     */
+    long bitPosition () {
+        return 8L * position - available;
+    }
+    
+    /**
+     * Moves the reader to any bit of its buffer, so that one reader can
+     * serve reads scattered over a stream
+     * @param bitPosition Index of the next bit to read, counted from bit 0 of the buffer
+     */
+    void seek (long bitPosition) {
+        position    = (int) (bitPosition >>> 3);
+        accumulator = 0;
+        available   = 0;
+        refill();
+        skip((int) (bitPosition & 7));
+    }
+    
+    /**
+     * @return A big-endian view of the bytes read, indexed like the buffer,
+     *         for decoders that keep their own accumulator between seeks
+     */
+    ByteBuffer words () {
+        return words;
+    }
+    
+    /**
+     * @return Index one past the last byte to read
+     */
+    int limit () {
+        return limit;
+    }
+    
+    /**
+     * @return The next 8 bits in the stream as an unsigned byte
+     */
+    int readByte () {
+        int value = (int) peek(8);
+        skip(8);
+        return value;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint as written by BitWriter.writeVarint
+     * @return The decoded value
+     * @throws IllegalArgumentException if the varint runs past 64 bits
+     */
+    long readVarint () {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte();
+            if (shift == 63 && b > 1) {
+                break;      //the 10th byte holds bit 63 alone
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * @return Number of bits before the limit not yet read; negative once reads
+     *         have run past the limit into the implicit 0 padding
+     */
+    long bitsLeft () {
+        return 8L * limit - bitPosition();
+    }
+
+    /**
+     * Reads a message length prefix as a varint. Every symbol takes at least
+     * one bit, so a length above the number of bits left is malformed, and is
+     * rejected before anyone allocates room for it.
+     * @return The message length
+     * @throws IllegalArgumentException if the length is negative or more than
+     *         the bits left
+     */
+    int readLength () {
+        long length = readVarint();
+        if (length < 0 || length > bitsLeft() || length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Message too long for its " + bitsLeft() + " bits: " + length);
+        }
+        return (int) length;
+    }
+
+    /**
+     * Checks that no bit read so far lay past the limit, as it would when a
+     * truncated message decodes its missing bits as 0 padding
+     * @throws IllegalArgumentException if a read ran past the limit
+     */
+    void checkEnd () {
+        if (bitsLeft() < 0) {
+            throw new IllegalArgumentException("Truncated message: ran " + -bitsLeft() + " bits past the end");
+        }
+    }
+
+    /**
+     * Tops the accumulator up to at least 57 bits: with one 8-byte read and as
+     * many of its whole bytes as fit when 8 bytes remain, else a byte at a time
+     */
+    private void refill () {
+        if (position + 8 <= limit) {
+            int take     = (64 - available) >>> 3;
+            accumulator |= (words.getLong(position) >>> available) & (-1L << (64 - available - 8 * take));
+            position    += take;
+            available   += 8 * take;
+            return;
+        }
+        while (available <= 56) {
+            long next = position >= limit ? 0
+                      : buffer != null  ? buffer[position] & 0xFF
+                      : source.get(position) & 0xFF;
+            position++;
+            accumulator |= next << (56 - available);
+            available += 8;
+        }
+    }
+
+}
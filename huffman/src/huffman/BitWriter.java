@@ -0,0 +1,133 @@
+package huffman;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * BitWriter packs variable-length codes, most significant bit first,
+ * into a growable byte buffer. Codes are shifted into a 64-bit
+ * accumulator that is flushed a whole byte at a time, so writing a
+ * symbol never allocates (beyond the occasional buffer growth).
+ */
+class BitWriter {
+
+    private byte[] buffer;
+    private int    position;
+    private long   accumulator;
+    private int    pending;     // bits waiting in the accumulator, always < 8 between writes
+
+    /**
+     * Constructs a new BitWriter with the given initial capacity in bytes
+     * @param capacity Starting size of the backing buffer; grows as needed
+     */
+    BitWriter (int capacity) {
+        buffer = new byte[Math.max(capacity, 16)];
+    }
+
+    /**
+     * Appends the lowest {@code length} bits of {@code bits} to the stream
+     * @param bits Right-aligned code bits; bits above {@code length} must be 0
+     * @param length Number of bits to write, at most {@link CodeTable#MAX_CODE_LENGTH}
+     */
+    void write (long bits, int length) {
+        accumulator = (accumulator << length) | bits;
+        pending += length;
+        while (pending >= 8) {
+            pending -= 8;
+            if (position == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            buffer[position++] = (byte) (accumulator >>> pending);
+        }
+    }
+
+    /**
+     * Appends a non-negative value as an unsigned LEB128 varint: 7 bits per
+     * byte, low bits first, with the high bit set on every byte but the last
+     * @param value The value to write
+     */
+    void writeVarint (long value) {
+        while ((value & ~0x7FL) != 0) {
+            write((value & 0x7F) | 0x80, 8);
+            value >>>= 7;
+        }
+        write(value, 8);
+    }
+
+    /**
+     * Appends the whole contents of another BitWriter; both writers must be
+     * on a byte boundary
+     * @param other The writer whose bytes are copied
+     */
+    void append (BitWriter other) {
+        if (position + other.position > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + other.position));
+        }
+        System.arraycopy(other.buffer, 0, buffer, position, other.position);
+        position += other.position;
+    }
+
+    /**
+     * Copies every whole byte written so far to the given stream; the
+     * writer should be on a byte boundary
+     * @param out The stream to copy to
+     * @throws IOException if the stream cannot be written
+     */
+    void writeTo (OutputStream out) throws IOException {
+        out.write(buffer, 0, position);
+    }
+
+    /**
+     * Copies every whole byte written so far into the given buffer, such as
+     * a direct buffer bound for a FileChannel
+     * @param out The buffer to copy to; must have room for size() bytes
+     */
+    void writeTo (ByteBuffer out) {
+        out.put(buffer, 0, position);
+    }
+
+    /**
+     * Discards everything written so far, keeping the buffer for reuse
+     */
+    void reset () {
+        position    = 0;
+        pending     = 0;
+        accumulator = 0;
+    }
+
+    /**
+     * Pads the final partial byte (if any) with 0s so that the next write
+     * starts on a byte boundary
+     */
+    void align () {
+        if (pending > 0) {
+            write(0, 8 - pending);
+        }
+    }
+
+    /**
+     * @return The size of the backing buffer in bytes
+     */
+    int capacity () {
+        return buffer.length;
+    }
+
+    /**
+     * @return The number of whole bytes written so far
+     */
+    int size () {
+        return position;
+    }
+
+    /**
+     * Pads the stream to a byte boundary and returns a copy of its contents
+     * @return {@code byte[]} holding every byte written so far
+     */
+    byte[] toByteArray () {
+        align();
+        return Arrays.copyOf(buffer, position);
+    }
+
+}
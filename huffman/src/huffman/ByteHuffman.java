@@ -0,0 +1,92 @@
+package huffman;
+
+/**
+ * ByteHuffman instances provide reusable Huffman codes for compressing and
+ * decompressing arbitrary binary data (rather than Java text) with a
+ * distribution of byte values comparable to that of a training corpus.
+ * Counts live in a flat long[256] and codes in 256-entry arrays, so neither
+ * training nor encoding boxes a single value.
+ * 
+ * Compressed messages share the layout of Huffman.compress: a varint byte
+ * count, then the bitstring, split into length-prefixed blocks of
+ * Huffman.BLOCK_SIZE bytes for long messages.
+ */
+public class ByteHuffman {
+    
+    private final long[]    distributions = new long[256];
+    private final CodeTable codes;
+    
+    /**
+     * Creates the canonical Huffman code for the byte distribution of the
+     * given corpus
+     * @param corpus Sample of the binary data that will be compressed
+     */
+    public ByteHuffman (byte[] corpus) {
+        for (byte b: corpus) {
+            distributions[b & 0xFF]++;
+        }
+        codes = CodeTable.canonical(CodeLengths.optimal(distributions));
+    }
+    
+    /**
+     * Compresses the given bytes with this instance's code
+     * @param message The bytes to compress
+     * @return {@code byte[]} holding the varint length followed by the
+     *         Huffman coded bitstring
+     * @throws IllegalArgumentException if the message contains a byte value
+     *         that did not appear in the corpus
+     */
+    public byte[] compress (byte[] message) {
+        BitWriter out = new BitWriter(message.length / 2 + 16);
+        out.writeVarint(message.length);
+        if (message.length <= Huffman.BLOCK_SIZE) {
+            encodeRange(message, 0, message.length, out);
+            return out.toByteArray();
+        }
+        
+        BitWriter block = new BitWriter(Huffman.BLOCK_SIZE / 2);
+        for (int start = 0; start < message.length; start += Huffman.BLOCK_SIZE) {
+            block.reset();
+            encodeRange(message, start, Math.min(start + Huffman.BLOCK_SIZE, message.length), block);
+            block.align();
+            out.writeVarint(block.size());
+            out.append(block);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Decompresses bytes made by compress on this instance
+     * @param compressedMsg {@code byte[]} in the format made by compress
+     * @return The original bytes
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public byte[] decompress (byte[] compressedMsg) {
+        BitReader in   = new BitReader(compressedMsg, 0, compressedMsg.length);
+        byte[] result  = new byte[in.readLength()];
+        if (result.length <= Huffman.BLOCK_SIZE) {
+            decodeRange(in, result, 0, result.length);
+        } else {
+            for (int start = 0; start < result.length; start += Huffman.BLOCK_SIZE) {
+                in.readVarint();
+                decodeRange(in, result, start, Math.min(start + Huffman.BLOCK_SIZE, result.length));
+                in.align();
+            }
+        }
+        in.checkEnd();
+        return result;
+    }
+    
+    private void encodeRange (byte[] message, int start, int end, BitWriter out) {
+        for (int i = start; i < end; i++) {
+            codes.encode(message[i] & 0xFF, out);
+        }
+    }
+    
+    private void decodeRange (BitReader in, byte[] result, int start, int end) {
+        for (int i = start; i < end; i++) {
+            result[i] = (byte) codes.decode(in);
+        }
+    }
+    
+}
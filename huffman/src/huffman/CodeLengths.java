@@ -0,0 +1,169 @@
+package huffman;
+
+import java.util.Arrays;
+
+/**
+ * CodeLengths computes Huffman code lengths straight from symbol counts,
+ * using flat arrays in place of a trie of HuffNodes. The lengths are all a
+ * canonical CodeTable needs, so models built this way never hold a trie.
+ */
+final class CodeLengths {
+    
+    private CodeLengths () {}
+    
+    /**
+     * Computes optimal (unconstrained) Huffman code lengths with the classic
+     * two-queue construction: leaves sorted by count in one queue, merged
+     * nodes (which are created in nondecreasing order) in the other.
+     * @param counts Occurrences of each symbol; 0 for absent symbols
+     * @return Code length of each symbol, 0 for absent symbols. A lone
+     *         symbol gets a 1-bit code.
+     */
+    static int[] optimal (long[] counts) {
+        int[] lengths  = new int[counts.length];
+        int[] symbols  = presentSymbols(counts);
+        int n          = symbols.length;
+        if (n == 1) {
+            lengths[symbols[0]] = 1;
+        }
+        if (n <= 1) {
+            return lengths;
+        }
+        
+        //nodes [0, n) are the sorted leaves, [n, 2n - 1) the merged nodes
+        long[] weight = new long[2 * n - 1];
+        int[]  parent = new int[2 * n - 1];
+        for (int i = 0; i < n; i++) {
+            weight[i] = counts[symbols[i]];
+        }
+        int leaf = 0, merged = n;
+        for (int next = n; next < 2 * n - 1; next++) {
+            for (int k = 0; k < 2; k++) {
+                int pick = (leaf < n && (merged == next || weight[leaf] <= weight[merged])) ? leaf++ : merged++;
+                weight[next] += weight[pick];
+                parent[pick]  = next;
+            }
+        }
+        
+        //depths follow from the root (the last merged node) downwards
+        int[] depth = new int[2 * n - 1];
+        for (int i = 2 * n - 3; i >= 0; i--) {
+            depth[i] = depth[parent[i]] + 1;
+        }
+        for (int i = 0; i < n; i++) {
+            lengths[symbols[i]] = depth[i];
+        }
+        return lengths;
+    }
+    
+    /**
+     * Computes optimal Huffman code lengths subject to a maximum length, with
+     * the package-merge algorithm: each level's list merges the sorted leaves
+     * with pairs ("packages") of the deeper level's list, and a symbol's code
+     * length is the number of levels whose selected prefix holds its leaf.
+     * @param counts Occurrences of each symbol; 0 for absent symbols
+     * @param maxLength Longest code allowed
+     * @return Code length of each symbol, 0 for absent symbols
+     * @throws IllegalArgumentException if maxLength bits cannot code every
+     *         present symbol
+     */
+    static int[] limited (long[] counts, int maxLength) {
+        int[] lengths = optimal(counts);
+        int longest   = 0;
+        for (int length: lengths) {
+            longest = Math.max(longest, length);
+        }
+        if (longest <= maxLength) {
+            return lengths;
+        }
+        int[] symbols = presentSymbols(counts);
+        int n         = symbols.length;
+        if (maxLength < 1 || maxLength > CodeTable.MAX_CODE_LENGTH || (maxLength < 31 && n > 1 << maxLength)) {
+            throw new IllegalArgumentException(n + " symbols cannot be coded in " + maxLength + " bits");
+        }
+        
+        //building each level's list from the deepest up, remembering for every
+        //item whether it was a leaf or a package of the level below
+        boolean[][] isLeaf = new boolean[maxLength + 1][];
+        long[] below       = new long[0];
+        for (int level = maxLength; level >= 1; level--) {
+            int packages  = below.length / 2;
+            long[] list   = new long[n + packages];
+            isLeaf[level] = new boolean[list.length];
+            int leaf = 0, pack = 0;
+            for (int i = 0; i < list.length; i++) {
+                long packWeight = pack < packages ? below[2 * pack] + below[2 * pack + 1] : Long.MAX_VALUE;
+                if (leaf < n && counts[symbols[leaf]] <= packWeight) {
+                    list[i] = counts[symbols[leaf++]];
+                    isLeaf[level][i] = true;
+                } else {
+                    list[i] = packWeight;
+                    pack++;
+                }
+            }
+            below = list;
+        }
+        
+        //selecting the cheapest 2n - 2 items at the top, and the items their
+        //packages are made of at every level below
+        Arrays.fill(lengths, 0);
+        int selected = 2 * n - 2;
+        for (int level = 1; level <= maxLength; level++) {
+            int leaves = 0;
+            for (int i = 0; i < selected; i++) {
+                if (isLeaf[level][i]) {
+                    lengths[symbols[leaves++]]++;
+                }
+            }
+            selected = 2 * (selected - leaves);
+        }
+        return lengths;
+    }
+    
+    /**
+     * @param counts Occurrences of each symbol
+     * @param lengths Code length of each symbol
+     * @return Total bits needed to code every occurrence of every symbol
+     */
+    static long totalBits (long[] counts, int[] lengths) {
+        long total = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            total += counts[symbol] * lengths[symbol];
+        }
+        return total;
+    }
+    
+    /**
+     * @param counts Occurrences of each symbol
+     * @return The symbols with nonzero counts, in ascending order of count
+     *         (ties broken by symbol)
+     * @throws IllegalArgumentException if a count or symbol is too large to sort
+     */
+    static int[] presentSymbols (long[] counts) {
+        int n = 0;
+        for (long count: counts) {
+            if (count > 0) {
+                n++;
+            }
+        }
+        //sorting (count, symbol) pairs packed into longs when they fit,
+        //which they do for any count below 2^(63 - 17)
+        long[] keys = new long[n];
+        int k = 0;
+        for (int symbol = 0; symbol < counts.length; symbol++) {
+            if (counts[symbol] >= 1L << 46 || (counts[symbol] > 0 && symbol >= 1 << 17)) {
+                throw new IllegalArgumentException("Count too large for symbol " + symbol);
+            }
+            if (counts[symbol] > 0) {
+                keys[k++] = (counts[symbol] << 17) | symbol;
+            }
+        }
+        Arrays.sort(keys);
+        int[] result = new int[n];
+        for (int i = 0; i < n; i++) {
+            result[i] = (int) (keys[i] & 0x1FFFF);
+        }
+        return result;
+    }
+    
+}
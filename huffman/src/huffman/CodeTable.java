@@ -0,0 +1,481 @@
+package huffman;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * CodeTables hold a prefix code as flat arrays of (bits, length) pairs
+ * indexed directly by symbol, so encoding a symbol is two array reads
+ * rather than a boxed HashMap lookup and a String concatenation.
+ * Decoding probes a lookup table indexed by the next TABLE_BITS bits of
+ * input, falling back to a flat binary trie for the rare longer codes.
+ * 
+ * A table may also hold an escape symbol, one past its largest character:
+ * any character without a code of its own is then written as the escape
+ * code followed by the raw 16-bit character, so every input is encodable.
+ */
+class CodeTable {
+
+    /**
+     * Longest code a table may hold; keeps every code plus a partial byte
+     * within BitWriter's 64-bit accumulator
+     */
+    static final int MAX_CODE_LENGTH = 57;
+    
+    /**
+     * Bits of input resolved by a single decode table probe
+     */
+    static final int TABLE_BITS = 10;
+    
+    private static final int INVALID = Integer.MIN_VALUE;
+    
+    /**
+     * Lockstep rounds decoded per refill: a refill leaves at least 56 bits in
+     * each stream, and a table probe consumes at most TABLE_BITS of them
+     */
+    private static final int ROUNDS = 56 / TABLE_BITS;
+    
+    /**
+     * Stands in for the escape symbol in code headers, whatever its symbol in
+     * the table, so that readers know the last symbol is an escape
+     */
+    private static final int ESCAPE_MARK = Character.MAX_VALUE + 1;
+
+    final long[] bits;
+    final int[]  lengths;
+    final int    escape;    // symbol of the escape code, or -1 for tables without one
+    
+    // Decode table entries are either (symbol << 6 | length) for codes of
+    // at most tableBits bits, or ~node for the trie node reached after
+    // tableBits bits of a longer code. Trie children are node indexes, or
+    // ~symbol for leaves; 0 (the root) marks a missing child.
+    private int   tableBits;
+    private int[] table;
+    private int[] trie;
+
+    /**
+     * Constructs an empty CodeTable for symbols in [0, alphabetSize)
+     * @param alphabetSize One more than the largest symbol the table will hold
+     */
+    CodeTable (int alphabetSize) {
+        this(alphabetSize, -1);
+    }
+    
+    /**
+     * Constructs an empty CodeTable for symbols in [0, alphabetSize), the last
+     * of which, if escape is set, is the escape symbol
+     * @param alphabetSize One more than the largest symbol the table will hold
+     * @param escape Whether the table holds an escape symbol
+     */
+    CodeTable (int alphabetSize, boolean escape) {
+        this(alphabetSize, escape ? alphabetSize - 1 : -1);
+    }
+    
+    private CodeTable (int alphabetSize, int escape) {
+        this.bits    = new long[alphabetSize];
+        this.lengths = new int[alphabetSize];
+        this.escape  = escape;
+    }
+
+    /**
+     * Assigns the given code to the given symbol
+     * @param symbol The symbol being encoded
+     * @param code Right-aligned code bits
+     * @param length Number of meaningful bits in code
+     */
+    void put (int symbol, long code, int length) {
+        if (length > MAX_CODE_LENGTH) {
+            throw new IllegalArgumentException("Code too long for symbol " + symbol + ": " + length + " bits");
+        }
+        bits[symbol]    = code;
+        lengths[symbol] = length;
+    }
+
+    /**
+     * Builds the canonical code for the given code lengths: symbols are
+     * ordered by (length, symbol) and assigned consecutive codes, so a code
+     * is fully determined by the lengths alone and every length's codes
+     * form one contiguous range
+     * @param lengths Code length of each symbol, or 0 for absent symbols
+     * @return A CodeTable, ready for decoding, holding the canonical code
+     * @throws IllegalArgumentException if the lengths cannot form a prefix code
+     */
+    static CodeTable canonical (int[] lengths) {
+        return canonical(lengths, false);
+    }
+    
+    /**
+     * Builds the canonical code for the given code lengths like canonical(lengths),
+     * treating the last symbol as the escape symbol if escape is set
+     * @param lengths Code length of each symbol, or 0 for absent symbols
+     * @param escape Whether the last symbol is the escape symbol
+     * @return A CodeTable, ready for decoding, holding the canonical code
+     * @throws IllegalArgumentException if the lengths cannot form a prefix code
+     */
+    static CodeTable canonical (int[] lengths, boolean escape) {
+        CodeTable result = new CodeTable(lengths.length, escape);
+        int[] perLength  = new int[MAX_CODE_LENGTH + 1];
+        for (int length: lengths) {
+            if (length < 0 || length > MAX_CODE_LENGTH) {
+                throw new IllegalArgumentException("Invalid code length: " + length);
+            }
+            perLength[length]++;
+        }
+        perLength[0] = 0;
+        
+        //first code of each length follows on from the last code of the previous one
+        long[] next = new long[MAX_CODE_LENGTH + 1];
+        long code   = 0;
+        for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+            code = (code + perLength[length - 1]) << 1;
+            next[length] = code;
+            if (code + perLength[length] > (1L << length)) {
+                throw new IllegalArgumentException("Code lengths oversubscribe the code space");
+            }
+        }
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] != 0) {
+                result.put(symbol, next[lengths[symbol]]++, lengths[symbol]);
+            }
+        }
+        result.buildDecoder();
+        return result;
+    }
+    
+    /**
+     * Serializes the code lengths of this table as a compact header: the
+     * number of coded symbols, then for each in ascending order the gap
+     * from the previous symbol (varint) and its code length (one byte). An
+     * escape symbol is always last, written as the symbol ESCAPE_MARK.
+     * Only meaningful for canonical tables, which the lengths fully describe.
+     * @param out The bit stream being written
+     */
+    void writeHeader (BitWriter out) {
+        int count = 0;
+        for (int length: lengths) {
+            if (length != 0) {
+                count++;
+            }
+        }
+        out.writeVarint(count);
+        int previous = 0;
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            if (lengths[symbol] != 0) {
+                int mark = symbol == escape ? ESCAPE_MARK : symbol;
+                out.writeVarint(mark - previous);
+                out.write(lengths[symbol], 8);
+                previous = symbol;
+            }
+        }
+    }
+    
+    /**
+     * Reads a header written by writeHeader and rebuilds its canonical code
+     * @param in The bit stream positioned at the header
+     * @return A CodeTable, ready for decoding, holding the canonical code
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    static CodeTable readHeader (BitReader in) {
+        long count = in.readVarint();
+        if (count < 0 || count > ESCAPE_MARK + 1) {
+            throw new IllegalArgumentException("Malformed code header");
+        }
+        int[] symbols = new int[(int) count];
+        int[] symLens = new int[symbols.length];
+        long symbol   = 0;
+        for (int i = 0; i < count; i++) {
+            symbol += in.readVarint();
+            if (symbol < 0 || symbol > ESCAPE_MARK || (symbol == ESCAPE_MARK && i != count - 1)) {
+                throw new IllegalArgumentException("Malformed code header");
+            }
+            symbols[i] = (int) symbol;
+            symLens[i] = in.readByte();
+        }
+        
+        //the escape symbol moves from its mark to one past the largest character
+        boolean escape = count > 0 && symbols[(int) count - 1] == ESCAPE_MARK;
+        if (escape) {
+            symbols[(int) count - 1] = count == 1 ? 0 : symbols[(int) count - 2] + 1;
+        }
+        int[] lengths = new int[count == 0 ? 0 : symbols[(int) count - 1] + 1];
+        for (int i = 0; i < count; i++) {
+            lengths[symbols[i]] = symLens[i];
+        }
+        return canonical(lengths, escape);
+    }
+    
+    /**
+     * @return Approximate heap bytes held by this table's code arrays, decode
+     *         table and trie
+     */
+    long footprint () {
+        return 12L * lengths.length + 4L * (table == null ? 0 : table.length + trie.length);
+    }
+    
+    /**
+     * @param symbol The symbol to look for
+     * @return true if the given symbol has a code in this table
+     */
+    boolean contains (int symbol) {
+        return symbol < lengths.length && lengths[symbol] != 0;
+    }
+
+    /**
+     * Writes the code for the given symbol to the given BitWriter, or the
+     * escape code and the raw 16-bit symbol if it has no code of its own
+     * @param symbol The symbol to encode
+     * @param out The bit stream being written
+     * @throws IllegalArgumentException if the symbol has no code and the
+     *         table no escape
+     */
+    void encode (int symbol, BitWriter out) {
+        if (symbol != escape && contains(symbol)) {
+            out.write(bits[symbol], lengths[symbol]);
+            return;
+        }
+        if (escape < 0) {
+            throw new IllegalArgumentException("No encoding for symbol " + symbol);
+        }
+        out.write(bits[escape], lengths[escape]);
+        out.write(symbol, 16);
+    }
+    
+    /**
+     * Builds the decode table and trie from the codes put so far; must be
+     * called once every code has been assigned and before any decode
+     */
+    void buildDecoder () {
+        int maxLength = 0;
+        for (int length: lengths) {
+            maxLength = Math.max(maxLength, length);
+        }
+        tableBits = Math.max(1, Math.min(TABLE_BITS, maxLength));
+        table     = new int[1 << tableBits];
+        trie      = new int[2];
+        Arrays.fill(table, INVALID);
+        
+        int nodeCount = 1;
+        for (int symbol = 0; symbol < lengths.length; symbol++) {
+            int  length = lengths[symbol];
+            long code   = bits[symbol];
+            if (length == 0) {
+                continue;
+            }
+            
+            //short codes fill every table slot that starts with them
+            if (length <= tableBits) {
+                int first = (int) (code << (tableBits - length));
+                Arrays.fill(table, first, first + (1 << (tableBits - length)), symbol << 6 | length);
+                continue;
+            }
+            
+            //long codes are threaded through the trie, whose node after
+            //tableBits bits becomes the table entry for their prefix
+            int node = 0;
+            for (int i = length - 1; i >= 0; i--) {
+                int slot = 2 * node + (int) ((code >>> i) & 1);
+                if (i == 0) {
+                    trie[slot] = ~symbol;
+                    break;
+                }
+                if (trie[slot] == 0) {
+                    if (2 * nodeCount == trie.length) {
+                        trie = Arrays.copyOf(trie, trie.length * 2);
+                    }
+                    trie[slot] = nodeCount++;
+                }
+                node = trie[slot];
+                if (i == length - tableBits) {
+                    table[(int) (code >>> i)] = ~node;
+                }
+            }
+        }
+    }
+    
+    /**
+     * Reads one code from the given BitReader and returns its symbol
+     * @param in The bit stream being decoded
+     * @return The decoded symbol
+     * @throws IllegalArgumentException if the input holds no valid code
+     */
+    int decode (BitReader in) {
+        int entry = table[(int) in.peek(tableBits)];
+        if (entry >= 0) {
+            in.skip(entry & 0x3F);
+            return escaped(entry >>> 6, in);
+        }
+        if (entry == INVALID) {
+            throw new IllegalArgumentException("Corrupt Huffman bitstring");
+        }
+        
+        in.skip(tableBits);
+        int node = ~entry;
+        while (true) {
+            int next = trie[2 * node + in.readBit()];
+            if (next < 0) {
+                return escaped(~next, in);
+            }
+            if (next == 0) {
+                throw new IllegalArgumentException("Corrupt Huffman bitstring");
+            }
+            node = next;
+        }
+    }
+    
+    /**
+     * Decodes the Huffman.STREAMS (4) interleaved sub-streams of a block in
+     * lockstep, one code from each per round and ROUNDS rounds per refill,
+     * keeping every stream's bits in locals so that the streams' lookups
+     * overlap. A code that needs more than a table probe (a long code or an
+     * escape) is decoded by that stream's reader, after which the stream
+     * reloads its bits and the rounds carry on. Stops once fewer than ROUNDS
+     * rounds remain or a stream nears its end, leaving the last few codes of
+     * each stream to the caller.
+     * @param words The bytes holding the sub-streams
+     * @param readers A reader over each sub-stream, moved by seek as needed
+     * @param bitPositions Bit index of each sub-stream's next code; updated
+     * @param limits Index one past the last byte of each sub-stream
+     * @param result The array receiving the decoded characters, sub-stream
+     *        s's at indexes congruent to s modulo 4 from the first round
+     * @param start Index of the first character to decode
+     * @param end Index one past the last character to decode
+     * @return Index of the first character not decoded
+     */
+    int decodeLockstep (ByteBuffer words, BitReader[] readers, long[] bitPositions, int[] limits, char[] result, int start, int end) {
+        int[] table      = this.table;
+        int shift        = 64 - tableBits;
+        int escape       = this.escape;
+        int l0 = limits[0] - 8, l1 = limits[1] - 8, l2 = limits[2] - 8, l3 = limits[3] - 8;
+        int i            = start;
+        
+        //each stream starts with an 8-byte read of which the first 7 bytes
+        //count, so that refills (which may overlap bits already held) never
+        //shift by a whole 64 bits
+        int  p0 = (int) (bitPositions[0] >>> 3), p1 = (int) (bitPositions[1] >>> 3),
+             p2 = (int) (bitPositions[2] >>> 3), p3 = (int) (bitPositions[3] >>> 3);
+        if (i + 4 * ROUNDS > end || p0 + 8 > l0 || p1 + 8 > l1 || p2 + 8 > l2 || p3 + 8 > l3) {
+            return i;
+        }
+        int  v0 = 56 - (int) (bitPositions[0] & 7), v1 = 56 - (int) (bitPositions[1] & 7),
+             v2 = 56 - (int) (bitPositions[2] & 7), v3 = 56 - (int) (bitPositions[3] & 7);
+        long a0 = words.getLong(p0) << (56 - v0),     a1 = words.getLong(p1) << (56 - v1),
+             a2 = words.getLong(p2) << (56 - v2),     a3 = words.getLong(p3) << (56 - v3);
+        p0 += 7; p1 += 7; p2 += 7; p3 += 7;
+        
+        rounds:
+        while (i + 4 * ROUNDS <= end && p0 <= l0 && p1 <= l1 && p2 <= l2 && p3 <= l3) {
+            a0 |= words.getLong(p0) >>> v0; p0 += (63 - v0) >>> 3; v0 |= 56;
+            a1 |= words.getLong(p1) >>> v1; p1 += (63 - v1) >>> 3; v1 |= 56;
+            a2 |= words.getLong(p2) >>> v2; p2 += (63 - v2) >>> 3; v2 |= 56;
+            a3 |= words.getLong(p3) >>> v3; p3 += (63 - v3) >>> 3; v3 |= 56;
+            for (int round = 0; round < ROUNDS; round++) {
+                int e0 = table[(int) (a0 >>> shift)], e1 = table[(int) (a1 >>> shift)],
+                    e2 = table[(int) (a2 >>> shift)], e3 = table[(int) (a3 >>> shift)];
+                if ((e0 | e1 | e2 | e3) >= 0 && (escape < 0 || (e0 >>> 6 != escape
+                        && e1 >>> 6 != escape && e2 >>> 6 != escape && e3 >>> 6 != escape))) {
+                    a0 <<= e0 & 0x3F; v0 -= e0 & 0x3F; result[i]     = (char) (e0 >>> 6);
+                    a1 <<= e1 & 0x3F; v1 -= e1 & 0x3F; result[i + 1] = (char) (e1 >>> 6);
+                    a2 <<= e2 & 0x3F; v2 -= e2 & 0x3F; result[i + 2] = (char) (e2 >>> 6);
+                    a3 <<= e3 & 0x3F; v3 -= e3 & 0x3F; result[i + 3] = (char) (e3 >>> 6);
+                    i += 4;
+                    continue;
+                }
+                
+                //a stream whose code the table cannot finish decodes it by reader
+                //and reloads from where the reader stopped, 7 bytes counted as
+                //at the start (so at least 49 bits, enough for the rest of the
+                //refill's rounds); one too near its end stops the rounds instead
+                boolean stop = false;
+                if (e0 < 0 || e0 >>> 6 == escape) {
+                    long next = decodeAt(readers[0], 8L * p0 - v0, result, i);
+                    p0 = (int) (next >>> 3); v0 = 56 - (int) (next & 7);
+                    a0 = p0 <= l0 ? words.getLong(p0) << (56 - v0) : 0;
+                    stop |= p0 > l0; p0 += 7;
+                } else {
+                    a0 <<= e0 & 0x3F; v0 -= e0 & 0x3F; result[i] = (char) (e0 >>> 6);
+                }
+                if (e1 < 0 || e1 >>> 6 == escape) {
+                    long next = decodeAt(readers[1], 8L * p1 - v1, result, i + 1);
+                    p1 = (int) (next >>> 3); v1 = 56 - (int) (next & 7);
+                    a1 = p1 <= l1 ? words.getLong(p1) << (56 - v1) : 0;
+                    stop |= p1 > l1; p1 += 7;
+                } else {
+                    a1 <<= e1 & 0x3F; v1 -= e1 & 0x3F; result[i + 1] = (char) (e1 >>> 6);
+                }
+                if (e2 < 0 || e2 >>> 6 == escape) {
+                    long next = decodeAt(readers[2], 8L * p2 - v2, result, i + 2);
+                    p2 = (int) (next >>> 3); v2 = 56 - (int) (next & 7);
+                    a2 = p2 <= l2 ? words.getLong(p2) << (56 - v2) : 0;
+                    stop |= p2 > l2; p2 += 7;
+                } else {
+                    a2 <<= e2 & 0x3F; v2 -= e2 & 0x3F; result[i + 2] = (char) (e2 >>> 6);
+                }
+                if (e3 < 0 || e3 >>> 6 == escape) {
+                    long next = decodeAt(readers[3], 8L * p3 - v3, result, i + 3);
+                    p3 = (int) (next >>> 3); v3 = 56 - (int) (next & 7);
+                    a3 = p3 <= l3 ? words.getLong(p3) << (56 - v3) : 0;
+                    stop |= p3 > l3; p3 += 7;
+                } else {
+                    a3 <<= e3 & 0x3F; v3 -= e3 & 0x3F; result[i + 3] = (char) (e3 >>> 6);
+                }
+                i += 4;
+                if (stop) {
+                    break rounds;
+                }
+            }
+        }
+        bitPositions[0] = 8L * p0 - v0;
+        bitPositions[1] = 8L * p1 - v1;
+        bitPositions[2] = 8L * p2 - v2;
+        bitPositions[3] = 8L * p3 - v3;
+        return i;
+    }
+    
+    /**
+     * Decodes one code by BitReader, for codes the table cannot finish
+     * @param in A reader over the code's stream
+     * @param bitPosition Bit index of the code in the stream's buffer
+     * @param result The array receiving the decoded character
+     * @param i Index of the character in result
+     * @return Bit index just past the code
+     */
+    private long decodeAt (BitReader in, long bitPosition, char[] result, int i) {
+        in.seek(bitPosition);
+        result[i] = (char) decode(in);
+        return in.bitPosition();
+    }
+    
+    /**
+     * Looks up the symbol whose code starts a window of input bits, for codes
+     * that fit within the window
+     * @param window The next bits of input, right-aligned
+     * @param windowBits Number of bits in the window
+     * @return The symbol, or -1 if the window does not hold a whole code
+     *         (of at most TABLE_BITS bits), or starts with the escape code
+     */
+    int peekSymbol (int window, int windowBits) {
+        int index = windowBits >= tableBits ? window >>> (windowBits - tableBits)
+                                            : window << (tableBits - windowBits);
+        int entry = table[index];
+        if (entry < 0 || (entry & 0x3F) > windowBits || entry >>> 6 == escape) {
+            return -1;
+        }
+        return entry >>> 6;
+    }
+    
+    /**
+     * @param symbol A symbol just decoded
+     * @param in The bit stream being decoded
+     * @return The symbol itself, or the raw 16-bit symbol following it if it
+     *         is the escape symbol
+     */
+    private int escaped (int symbol, BitReader in) {
+        if (symbol != escape) {
+            return symbol;
+        }
+        int raw = (int) in.peek(16);
+        in.skip(16);
+        return raw;
+    }
+
+}
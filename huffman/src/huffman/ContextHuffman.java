@@ -0,0 +1,264 @@
+package huffman;
+
+import java.util.Arrays;
+
+/**
+ * ContextHuffman instances provide order-1 Huffman codes: each character is
+ * coded with a table chosen by the character before it, so that text and
+ * structured logs, where a character says a lot about the next one, code in
+ * fewer bits than under a single order-0 table.
+ * 
+ * Only contexts seen at least minSamples times in the corpus get a table of
+ * their own, most frequent first, until the tables would outgrow a memory
+ * budget; every other context is coded with the order-0 table. A character
+ * that a context's table has never seen is coded as the table's fallback
+ * symbol (one past its largest character, weighted by how many characters
+ * the context saw only once) followed by its order-0 code. The order-0 table
+ * has an escape code, so any message compresses.
+ * 
+ * Compressed messages share the layout of Huffman.compress: a varint char
+ * count, then the bitstring, split into length-prefixed blocks of
+ * Huffman.BLOCK_SIZE chars for long messages. Contexts carry across blocks.
+ */
+public class ContextHuffman {
+    
+    /**
+     * Default memory budget for context tables, in bytes
+     */
+    public static final long DEFAULT_BUDGET = 1 << 20;
+    
+    /**
+     * Default number of times a context must appear in the corpus to get a table
+     */
+    public static final int DEFAULT_MIN_SAMPLES = 64;
+    
+    private final CodeTable   order0;
+    private final CodeTable[] tables;       // context tables, by context index
+    private final int[]       contextOf;    // context index of each preceding char, or -1
+    private final long        corpusBits, corpusChars;
+    
+    /**
+     * Creates the order-1 model of the given corpus with the default budget
+     * @param corpus A String representing a message / document corpus
+     */
+    public ContextHuffman (String corpus) {
+        this(corpus, DEFAULT_BUDGET, DEFAULT_MIN_SAMPLES);
+    }
+    
+    /**
+     * Creates the order-1 model of the given corpus
+     * @param corpus A String representing a message / document corpus
+     * @param budget Most bytes to spend on context tables (the order-0 table
+     *        is always kept); 0 gives a plain order-0 model
+     * @param minSamples Fewest appearances of a context for it to get a table
+     */
+    public ContextHuffman (String corpus, long budget, int minSamples) {
+        int[] counts = new int[Character.MAX_VALUE + 1];
+        int maxChar  = 0;
+        for (int i = 0; i < corpus.length(); i++) {
+            counts[corpus.charAt(i)]++;
+            maxChar = Math.max(maxChar, corpus.charAt(i));
+        }
+        order0 = new Huffman(counts, true).canonicalCodeTable();
+        
+        //candidate contexts, most frequent first; a context's samples are the
+        //characters following it, one per appearance except at the very end
+        int[] candidates = new int[maxChar + 1];
+        int n = 0;
+        for (int c = 0; c <= maxChar; c++) {
+            if (counts[c] >= Math.max(1, minSamples)) {
+                candidates[n++] = c;
+            }
+        }
+        candidates = Arrays.copyOf(candidates, n);
+        Integer[] order = new Integer[n];
+        for (int k = 0; k < n; k++) {
+            order[k] = candidates[k];
+        }
+        Arrays.sort(order, (a, b) -> counts[b] - counts[a]);
+        
+        //no table can cost less than its code arrays, which bounds how many
+        //contexts are worth counting before their actual sizes are known
+        int alphabet    = maxChar + 2;
+        long floor      = 12L * alphabet;
+        int considered  = (int) Math.min(n, budget / floor);
+        contextOf       = new int[maxChar + 1];
+        Arrays.fill(contextOf, -1);
+        for (int k = 0; k < considered; k++) {
+            contextOf[order[k]] = k;
+        }
+        long[][] pairs = new long[considered][alphabet];
+        for (int i = 1; i < corpus.length(); i++) {
+            int context = contextOf[corpus.charAt(i - 1)];
+            if (context >= 0) {
+                pairs[context][corpus.charAt(i)]++;
+            }
+        }
+        
+        //building tables in order of frequency until the budget runs out
+        CodeTable[] built = new CodeTable[considered];
+        long spent = 0;
+        int kept   = 0;
+        for (; kept < considered; kept++) {
+            long[] weights = pairs[kept];
+            int size       = alphabet - 1;
+            while (size > 0 && weights[size - 1] == 0) {
+                size--;
+            }
+            weights         = Arrays.copyOf(weights, size + 1);
+            weights[size]   = fallbackWeight(weights);
+            CodeTable table = CodeTable.canonical(CodeLengths.limited(weights, CodeTable.MAX_CODE_LENGTH));
+            if (spent + table.footprint() > budget) {
+                break;
+            }
+            spent       += table.footprint();
+            built[kept]  = table;
+        }
+        for (int c = 0; c <= maxChar; c++) {
+            if (contextOf[c] >= kept) {
+                contextOf[c] = -1;
+            }
+        }
+        tables = Arrays.copyOf(built, kept);
+        
+        //what the model spends on its own corpus
+        long bits = 0;
+        for (int i = 0; i < corpus.length(); i++) {
+            bits += codeLength(i == 0 ? -1 : corpus.charAt(i - 1), corpus.charAt(i));
+        }
+        corpusBits  = bits;
+        corpusChars = corpus.length();
+    }
+    
+    /**
+     * @param weights Counts of each character in a context, the last entry
+     *        (the fallback symbol) aside
+     * @return The number of characters seen exactly once, and at least 1
+     */
+    private static long fallbackWeight (long[] weights) {
+        long singletons = 0;
+        for (int c = 0; c < weights.length - 1; c++) {
+            if (weights[c] == 1) {
+                singletons++;
+            }
+        }
+        return Math.max(1, singletons);
+    }
+    
+    /**
+     * @param previous The preceding character, or -1 at the start of a message
+     * @return The context table for it, or null for the order-0 table
+     */
+    private CodeTable tableFor (int previous) {
+        return previous < 0 || previous >= contextOf.length || contextOf[previous] < 0
+             ? null : tables[contextOf[previous]];
+    }
+    
+    /**
+     * @param previous The preceding character, or -1 at the start of a message
+     * @param c The character to code
+     * @return The bits this model spends on c after previous
+     */
+    private int codeLength (int previous, char c) {
+        CodeTable table = tableFor(previous);
+        if (table != null && c < table.lengths.length - 1 && table.contains(c)) {
+            return table.lengths[c];
+        }
+        int fallback = table == null ? 0 : table.lengths[table.lengths.length - 1];
+        return fallback + (order0.contains(c) && c != order0.escape
+                           ? order0.lengths[c] : order0.lengths[order0.escape] + 16);
+    }
+    
+    /**
+     * @return The number of contexts with a table of their own
+     */
+    public int contexts () {
+        return tables.length;
+    }
+    
+    /**
+     * @return The average code length, in bits per character, of this model
+     *         over the corpus it was built from
+     */
+    public double averageCodeLength () {
+        return corpusChars == 0 ? 0 : (double) corpusBits / corpusChars;
+    }
+    
+    /**
+     * Compresses the given message with this instance's codes
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} holding the varint length followed by the
+     *         Huffman coded bitstring
+     */
+    public byte[] compress (String message) {
+        BitWriter out = new BitWriter(message.length() / 2 + 16);
+        out.writeVarint(message.length());
+        if (message.length() <= Huffman.BLOCK_SIZE) {
+            encodeRange(message, 0, message.length(), out);
+            return out.toByteArray();
+        }
+        
+        BitWriter block = new BitWriter(Huffman.BLOCK_SIZE / 2);
+        for (int start = 0; start < message.length(); start += Huffman.BLOCK_SIZE) {
+            block.reset();
+            encodeRange(message, start, Math.min(start + Huffman.BLOCK_SIZE, message.length()), block);
+            block.align();
+            out.writeVarint(block.size());
+            out.append(block);
+        }
+        return out.toByteArray();
+    }
+    
+    /**
+     * Decompresses a message made by compress on this instance
+     * @param compressedMsg {@code byte[]} in the format made by compress
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public String decompress (byte[] compressedMsg) {
+        BitReader in = new BitReader(compressedMsg, 0, compressedMsg.length);
+        char[] result = new char[in.readLength()];
+        if (result.length <= Huffman.BLOCK_SIZE) {
+            decodeRange(in, result, 0, result.length);
+        } else {
+            for (int start = 0; start < result.length; start += Huffman.BLOCK_SIZE) {
+                in.readVarint();
+                decodeRange(in, result, start, Math.min(start + Huffman.BLOCK_SIZE, result.length));
+                in.align();
+            }
+        }
+        in.checkEnd();
+        return new String(result);
+    }
+    
+    private void encodeRange (String message, int start, int end, BitWriter out) {
+        for (int i = start; i < end; i++) {
+            char c          = message.charAt(i);
+            CodeTable table = tableFor(i == 0 ? -1 : message.charAt(i - 1));
+            if (table == null) {
+                order0.encode(c, out);
+                continue;
+            }
+            int fallback = table.lengths.length - 1;
+            if (c < fallback && table.contains(c)) {
+                table.encode(c, out);
+            } else {
+                table.encode(fallback, out);
+                order0.encode(c, out);
+            }
+        }
+    }
+    
+    private void decodeRange (BitReader in, char[] result, int start, int end) {
+        for (int i = start; i < end; i++) {
+            CodeTable table = tableFor(i == 0 ? -1 : result[i - 1]);
+            if (table == null) {
+                result[i] = (char) order0.decode(in);
+                continue;
+            }
+            int symbol = table.decode(in);
+            result[i]  = (char) (symbol == table.lengths.length - 1 ? order0.decode(in) : symbol);
+        }
+    }
+    
+}
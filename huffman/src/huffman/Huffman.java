@@ -5,26 +5,59 @@
 
 package huffman;
 
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.PriorityQueue;
-import java.io.ByteArrayOutputStream;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.IntConsumer;
 
 /**
  * Huffman instances provide reusable Huffman Encoding Maps for
  * compressing and decompressing text corpi with comparable
- * distributions of characters.
+ * distributions of characters. Instances are immutable once built,
+ * so a single instance may be shared by any number of threads.
  */
 public class Huffman {
     
+    /**
+     * Number of characters per independently padded block in messages
+     * too long to compress as a single bitstring
+     */
+    public static final int BLOCK_SIZE = 1 << 16;
+    
+    /**
+     * Upper bound on a block's compressed size: every character at the
+     * longest code a CodeTable allows
+     */
+    static final int MAX_BLOCK_BYTES = (BLOCK_SIZE * CodeTable.MAX_CODE_LENGTH + 7) / 8;
+    
+    /**
+     * Number of interleaved sub-streams per block in compressInterleaved
+     */
+    static final int STREAMS = 4;
+    
+    /**
+     * Corpus length from which character counting is split across cores
+     */
+    private static final int PARALLEL_COUNT = 1 << 20;
+    
     // -----------------------------------------------
     // Construction
     // -----------------------------------------------
 
-    private HuffNode 					trieRoot;
-    private Map<Character, String> 		encodingMap 	= new HashMap<>();
-    private HashMap<Character, Integer> distributions 	= new HashMap<>();
-    private PriorityQueue<HuffNode> 	nodes			= new PriorityQueue<>();
+    private final HuffNode 					trieRoot;
+    private final Map<Character, String> 		encodingMap;
+    private final Map<Character, Integer> 	distributions;
+    private final CodeTable					codes;
+    private final CodeTable					canonicalCodes;
+    private final RunTable					runs;
+    private final long 						optimalBits;
+    private final int 						maxCodeLength;
     
     /**
      * Creates the Huffman Trie and Encoding Map using the character
@@ -36,33 +69,242 @@ public class Huffman {
      *        differ.
      */
     Huffman (String corpus) {
-    	//finding the distribution of chars in the corpus
-    	distributions.put(corpus.charAt(0), 1);
-    	for (int i = 1; i < corpus.length(); i++) {
-    		char curChar = corpus.charAt(i);
-    		if (distributions.containsKey(curChar)) {
-    			distributions.replace(curChar, distributions.get(curChar) + 1);
-    		} else {
-    			distributions.put(curChar, 1);
+    	this(toDistributions(countCharacters(corpus)), CodeTable.MAX_CODE_LENGTH, false);
+    }
+    
+    /**
+     * Creates the Huffman Trie and Encoding Map like Huffman(corpus), plus, if
+     * escape is set, an escape code for characters missing from the corpus:
+     * compress then writes such a character as the escape code followed by the
+     * raw 16-bit character, so any message compresses without retraining. The
+     * escape is weighted by the number of characters seen only once in the
+     * corpus, a (Good-Turing) estimate of how often new characters turn up.
+     * @param corpus A String representing a message / document corpus
+     * @param escape Whether to add an escape code
+     */
+    Huffman (String corpus, boolean escape) {
+    	this(toDistributions(countCharacters(corpus)), CodeTable.MAX_CODE_LENGTH, escape);
+    }
+    
+    /**
+     * Creates the Huffman Trie and Encoding Map like Huffman(corpus), but with
+     * no code longer than the given number of bits, so that every code fits a
+     * single decode table probe or machine word. When the optimal trie is too
+     * deep, the codes become the canonical code of the optimal length-limited
+     * lengths (found by package-merge); limitOverhead reports what that costs.
+     * @param corpus A String representing a message / document corpus
+     * @param maxCodeLength The longest code allowed, e.g. 15
+     * @throws IllegalArgumentException if maxCodeLength bits cannot give every
+     *         character in the corpus its own code
+     */
+    Huffman (String corpus, int maxCodeLength) {
+    	this(toDistributions(countCharacters(corpus)), maxCodeLength, false);
+    }
+    
+    /**
+     * Creates the Huffman Trie and Encoding Map from precomputed character
+     * counts, as when the corpus is too large to hold in a single String
+     * @param counts The number of times each character appears in the corpus,
+     *        indexed by character; 0 for characters that do not appear
+     */
+    Huffman (int[] counts) {
+    	this(toDistributions(counts), CodeTable.MAX_CODE_LENGTH, false);
+    }
+    
+    /**
+     * Creates the Huffman Trie and Encoding Map from precomputed character
+     * counts, with an escape code if escape is set (see Huffman(corpus, escape))
+     * @param counts The number of times each character appears in the corpus,
+     *        indexed by character; 0 for characters that do not appear
+     * @param escape Whether to add an escape code
+     */
+    Huffman (int[] counts, boolean escape) {
+    	this(toDistributions(counts), CodeTable.MAX_CODE_LENGTH, escape);
+    }
+    
+    /**
+     * Creates the Huffman Trie and Encoding Map from precomputed character
+     * counts, with no code longer than maxCodeLength (see Huffman(corpus,
+     * maxCodeLength)) and an escape code if escape is set
+     * @param counts The number of times each character appears in the corpus,
+     *        indexed by character; 0 for characters that do not appear
+     * @param maxCodeLength The longest code allowed
+     * @param escape Whether to add an escape code
+     */
+    Huffman (int[] counts, int maxCodeLength, boolean escape) {
+    	this(toDistributions(counts), maxCodeLength, escape);
+    }
+    
+    /**
+     * Builds the trie, encoding map and code tables from the distributions, once;
+     * nothing about an instance changes after construction, so one instance can
+     * be shared by any number of threads
+     * @param distributions	the number of times each character appears in the corpus
+     * 		  maxCodeLength	the longest code allowed
+     * 		  escape			whether to add an escape code
+     */
+    private Huffman (Map<Character, Integer> distributions, int maxCodeLength, boolean escape) {
+    	Map<Character, String> encoding = new HashMap<>();
+    	HuffNode root;
+    	CodeTable table;
+    	long[] counts;
+    	if (escape) {
+    		//escape codes come straight from the code lengths, with the escape
+    		//symbol one past the largest character
+    		int maxChar = 0;
+    		for (char key: distributions.keySet()) {
+    			maxChar = Math.max(maxChar, key);
     		}
+    		counts 					= flatCounts(distributions, maxChar + 2);
+    		counts[maxChar + 1] 	= escapeWeight(counts);
+    		table 					= CodeTable.canonical(CodeLengths.optimal(counts), true);
+    		root 					= null;
+    	} else {
+    		//constructing trie tree and assigning the encoding
+    		root 	= createTree(distributions);
+    		createEncoding(root, "", encoding);
+    		table 	= createCodeTable(encoding);
+    		counts 	= flatCounts(distributions, table.lengths.length);
     	}
     	
-    	//initializing HuffNodes into the PriorityQueue
-    	for (char key: distributions.keySet()) {
-    		nodes.add(new HuffNode(key, distributions.get(key)));
+    	//swapping in the limited code when the optimal trie is too deep, and the
+    	//trie + encoding map that spell out any canonical code
+    	int longest = 0;
+    	for (int length: table.lengths) {
+    		longest = Math.max(longest, length);
+    	}
+    	optimalBits = CodeLengths.totalBits(flatCounts(distributions, table.lengths.length), table.lengths);
+    	if (longest > maxCodeLength) {
+    		table = CodeTable.canonical(CodeLengths.limited(counts, maxCodeLength), escape);
+    	}
+    	if (root == null || longest > maxCodeLength) {
+    		root = new HuffNode('\0', 0);
+    		encoding.clear();
+    		for (int c = 0; c < table.lengths.length; c++) {
+    			if (c == table.escape) {
+    				insertCode(root, null, '\0', table.bits[c], table.lengths[c]).escape = true;
+    			} else if (table.contains(c)) {
+    				insertCode(root, encoding, (char) c, table.bits[c], table.lengths[c]);
+    			}
+    		}
     	}
     	
-    	//constructing trie tree and assigning the encoding
-    	createTree();
-    	createEncoding(trieRoot, "");
+    	this.distributions 	= Collections.unmodifiableMap(distributions);
+    	this.maxCodeLength 	= maxCodeLength;
+    	this.trieRoot 		= root;
+    	this.encodingMap 	= Collections.unmodifiableMap(encoding);
+    	this.codes 			= table;
+    	this.canonicalCodes = CodeTable.canonical(table.lengths, escape);
+    	this.runs 			= RunTable.pays(flatCounts(distributions, table.lengths.length), table.lengths)
+    						? new RunTable(table) : null;
+    }
+    
+    /**
+     * Finds the distribution of chars in the corpus by direct indexing into a
+     * flat count per char; corpora of at least PARALLEL_COUNT chars are counted
+     * in slices on the common ForkJoinPool, and the slices' counts then merged
+     * @param  corpus 	the training corpus
+     * @return counts	the number of times each character appears in the corpus
+     */
+    private static int[] countCharacters(String corpus) {
+    	int length = corpus.length();
+    	if (length < PARALLEL_COUNT) {
+    		return countRange(corpus, 0, length);
+    	}
+    	
+    	//a few slices per worker, each with its own counts, merged at the end
+    	int slice 		= Math.max(PARALLEL_COUNT / 4, length / (4 * ForkJoinPool.getCommonPoolParallelism()) + 1);
+    	int[][] partial = new int[(length - 1) / slice + 1][];
+    	ForkJoinPool.commonPool().invoke(new BlockTask(0, partial.length, s ->
+    		partial[s] = countRange(corpus, s * slice, (int) Math.min(length, (long) (s + 1) * slice))
+    	));
+    	int[] counts = partial[0];
+    	for (int s = 1; s < partial.length; s++) {
+    		for (int c = 0; c < counts.length; c++) {
+    			counts[c] += partial[s][c];
+    		}
+    	}
+    	return counts;
+    }
+    
+    /**
+     * @param  corpus 	the training corpus
+     * 		   start	index of the first char to count
+     * 		   end		index one past the last char to count
+     * @return counts	the number of times each character appears in corpus[start, end)
+     */
+    private static int[] countRange(String corpus, int start, int end) {
+    	int[] counts = new int[Character.MAX_VALUE + 1];
+    	for (int i = start; i < end; i++) {
+    		counts[corpus.charAt(i)]++;
+    	}
+    	return counts;
+    }
+    
+    /**
+     * @param  counts	character counts indexed by character
+     * @return result	the same counts keyed by character, without the zeros
+     */
+    private static Map<Character, Integer> toDistributions(int[] counts) {
+    	HashMap<Character, Integer> distributions = new HashMap<>();
+    	for (int c = 0; c < counts.length; c++) {
+    		if (counts[c] > 0) {
+    			distributions.put((char) c, counts[c]);
+    		}
+    	}
+    	return distributions;
+    }
+    
+    /**
+     * @param  distributions	character counts keyed by character
+     * 		   size			one more than the largest character counted
+     * @return result			the same counts as a flat array indexed by character
+     */
+    private static long[] flatCounts(Map<Character, Integer> distributions, int size) {
+    	long[] counts = new long[size];
+    	for (Map.Entry<Character, Integer> entry: distributions.entrySet()) {
+    		counts[entry.getKey()] = entry.getValue();
+    	}
+    	return counts;
+    }
+    
+    /**
+     * @param  counts	character counts indexed by character
+     * @return weight	the count to give the escape symbol: the number of characters
+     * 					seen exactly once, and at least 1
+     */
+    private static long escapeWeight(long[] counts) {
+    	long singletons = 0;
+    	for (long count: counts) {
+    		if (count == 1) {
+    			singletons++;
+    		}
+    	}
+    	return Math.max(1, singletons);
     }
     
     /**
      * Constructs the trie encoding's HuffNode "tree"
-     * @param  none
-     * @return void
+     * @param  distributions	the number of times each character appears in the corpus
+     * @return root 			the root of the Huffman Trie, or null for an empty corpus
      */
-    public void createTree() {
+    private static HuffNode createTree(Map<Character, Integer> distributions) {
+    	//initializing HuffNodes into the PriorityQueue
+    	PriorityQueue<HuffNode> nodes = new PriorityQueue<>();
+    	for (char key: distributions.keySet()) {
+    		nodes.add(new HuffNode(key, distributions.get(key)));
+    	}
+    	if (nodes.isEmpty()) {
+    		return null;
+    	}
+    	
+    	//a lone character still needs a 1-bit code, so it hangs off an otherwise empty root
+    	if (nodes.size() == 1) {
+    		HuffNode root 	= new HuffNode('\0', nodes.peek().count);
+    		root.left 		= nodes.remove();
+    		return root;
+    	}
+    	
     	HuffNode curNode = new HuffNode('\0', 0);
     	while (nodes.size() != 1) {
     		HuffNode r 		= nodes.remove();
@@ -72,23 +314,166 @@ public class Huffman {
     		curNode.left  	= l;
     		nodes.add(curNode);
     	}
-    	trieRoot = curNode;
+    	return curNode;
     }
     
     /**
      * Constructs the encoding assignments into the encoding map recursively
      * @param  node		the current node in the recursion
      * 		   encoding the encoding for the current node thus far
+     * 		   result	the encoding map being filled in
      * @return void
      */
-    public void createEncoding(HuffNode node, String encoding) {
+    private static void createEncoding(HuffNode node, String encoding, Map<Character, String> result) {
+    	if (node == null) {
+    		return;
+    	}
     	if (node.isLeaf()) {
-    		encodingMap.put(node.character, encoding);
+    		result.put(node.character, encoding);
     		return;
     	}
     	
-    	createEncoding(node.left,  encoding + "1");
-    	createEncoding(node.right, encoding + "0");
+    	createEncoding(node.left,  encoding + "1", result);
+    	createEncoding(node.right, encoding + "0", result);
+    }
+    
+    /**
+     * Adds the given code to a Huffman Trie (1 = left, 0 = right, as assigned
+     * by createEncoding) and Encoding Map
+     * @param  root		the root of the trie being built
+     * 		   result		the encoding map being built, or null to leave it out
+     * 		   character	the character being encoded
+     * 		   code		right-aligned code bits
+     * 		   length		number of bits in the code
+     * @return leaf		the trie leaf for the code
+     */
+    private static HuffNode insertCode(HuffNode root, Map<Character, String> result, char character, long code, int length) {
+    	HuffNode node 			= root;
+    	StringBuilder encoding 	= new StringBuilder(length);
+    	for (int i = length - 1; i >= 0; i--) {
+    		boolean one = ((code >>> i) & 1) == 1;
+    		encoding.append(one ? '1' : '0');
+    		HuffNode next = one ? node.left : node.right;
+    		if (next == null) {
+    			next = new HuffNode(i == 0 ? character : '\0', 0);
+    			if (one) { node.left = next; } else { node.right = next; }
+    		}
+    		node = next;
+    	}
+    	if (result != null) {
+    		result.put(character, encoding.toString());
+    	}
+    	return node;
+    }
+    
+    /**
+     * Packs the String codes of an encoding map into a CodeTable of
+     * (bits, length) pairs indexed by character, used by compress
+     * @param  encoding	the encoding map to pack
+     * @return table		the CodeTable, ready for decoding
+     */
+    private static CodeTable createCodeTable(Map<Character, String> encoding) {
+    	int maxChar = 0;
+    	for (char key: encoding.keySet()) {
+    		maxChar = Math.max(maxChar, key);
+    	}
+    	CodeTable table = new CodeTable(maxChar + 1);
+    	for (Map.Entry<Character, String> entry: encoding.entrySet()) {
+    		String code = entry.getValue();
+    		table.put(entry.getKey(), code.isEmpty() ? 0 : Long.parseLong(code, 2), code.length());
+    	}
+    	table.buildDecoder();
+    	return table;
+    }
+    
+    
+    /**
+     * @return The CodeTable used by compress and decompress, shared with the
+     *         streaming HuffmanWriter and HuffmanReader
+     */
+    CodeTable codeTable() {
+    	return codes;
+    }
+    
+    /**
+     * @return The canonical CodeTable used by compressCanonical, shared with
+     *         the file mode in HuffmanFiles
+     */
+    CodeTable canonicalCodeTable() {
+    	return canonicalCodes;
+    }
+    
+    /**
+     * @return The RunTable decoding several characters per probe of codeTable(),
+     *         shared with the streaming HuffmanReader; null when the codes are
+     *         too long for runs to pay
+     */
+    RunTable runTable() {
+    	return runs;
+    }
+    
+    
+    /**
+     * @return A fresh copy of the corpus character counts, indexed by character,
+     *         used to seed adaptive streams
+     */
+    long[] corpusCounts() {
+    	return flatCounts(distributions, codes.lengths.length);
+    }
+    
+    /**
+     * @return The longest code this instance was allowed to build, which with the
+     *         corpus counts and hasEscape is all it takes to rebuild it exactly
+     */
+    int maxCodeLength() {
+    	return maxCodeLength;
+    }
+    
+    /**
+     * @return true if this instance was built with an escape code
+     */
+    boolean hasEscape() {
+    	return codes.escape >= 0;
+    }
+    
+    /**
+     * @param  message	the String to check
+     * @return true if every character of message has a code (or the model an escape
+     *         code), so compress will accept it
+     */
+    public boolean canEncode(String message) {
+    	if (hasEscape()) {
+    		return true;
+    	}
+    	for (int i = 0; i < message.length(); i++) {
+    		if (!codes.contains(message.charAt(i))) {
+    			return false;
+    		}
+    	}
+    	return true;
+    }
+    
+    /**
+     * @return The average code length, in bits per character, of this instance's
+     *         encoding over the corpus it was built from
+     */
+    public double averageCodeLength() {
+    	long[] counts = corpusCounts();
+    	long total = 0;
+    	for (long count: counts) {
+    		total += count;
+    	}
+    	return total == 0 ? 0 : (double) CodeLengths.totalBits(counts, codes.lengths) / total;
+    }
+    
+    /**
+     * @return The fraction by which this instance's encoding of its own corpus
+     *         is larger than the optimal (unlimited) Huffman encoding's, e.g.
+     *         0.01 for 1% larger; 0 unless built with a maximum code length
+     */
+    public double limitOverhead() {
+    	long bits = CodeLengths.totalBits(corpusCounts(), codes.lengths);
+    	return optimalBits == 0 ? 0 : (double) (bits - optimalBits) / optimalBits;
     }
     
     
@@ -103,30 +488,122 @@ public class Huffman {
      * @param message String representing the corpus to compress.
      * @return {@code byte[]} representing the compressed corpus with the
      *         Huffman coded bytecode. Formatted as 3 components: (1) the
-     *         first byte contains the number of characters in the message,
-     *         (2) the bitstring containing the message itself, (3) possible
-     *         0-padding on the final byte.
+     *         number of characters in the message as a varint (a single byte
+     *         for messages under 128 characters), (2) the bitstring containing
+     *         the message itself, (3) possible 0-padding on the final byte.
+     *         Messages longer than BLOCK_SIZE characters instead split (2) and
+     *         (3) into blocks of BLOCK_SIZE characters, each prefixed by its
+     *         padded length in bytes as a varint.
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
      */
     public byte[] compress (String message) {
-    	//vars necessary for this method
-    	ByteArrayOutputStream river = new ByteArrayOutputStream();
-    	String encoded 				= String.format("%8s", Integer.toBinaryString(message.length())).replace(' ', '0');
-		int counter 				= 0;
-    	byte[] result;
-    	
-    	//encoding the original message
-    	for (int i = 0; i < message.length(); i++) {
-    		encoded += encodingMap.get(message.charAt(i));
+    	Scratch scratch = SCRATCH.get();
+    	scratch.out.reset();
+    	writeMessage(message, codes, scratch.out, scratch.block);
+    	return scratch.finish();
+    }
+    
+    /**
+     * Compresses the given message like compress, but straight into the caller's
+     * buffer (heap or direct) from any CharSequence, such as a StringBuilder or
+     * CharBuffer, so that pooled buffers see no allocation per call
+     * @param message	The characters to encode
+     * 		  dst		The buffer receiving the compressed bytes at its position,
+     * 					which advances past them
+     * @return 	The number of bytes written
+     * @throws BufferOverflowException if dst has too little room left, in which
+     *         case nothing is written
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
+     */
+    public int compress (CharSequence message, ByteBuffer dst) {
+    	Scratch scratch = SCRATCH.get();
+    	scratch.out.reset();
+    	writeMessage(message, codes, scratch.out, scratch.block);
+    	int size = scratch.out.size();
+    	if (size > dst.remaining()) {
+    		scratch.trim();
+    		throw new BufferOverflowException();
+    	}
+    	scratch.out.writeTo(dst);
+    	scratch.trim();
+    	return size;
+    }
+    
+    /**
+     * Compresses the given String message like compress, but prefixed by the given
+     * model ID as a varint, as HuffmanRegistry frames are
+     * @param id The ID to stamp the message with
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} holding the varint ID followed by the compressed
+     *         message in the same format as compress.
+     */
+    byte[] compressTagged (long id, String message) {
+    	Scratch scratch = SCRATCH.get();
+    	scratch.out.reset();
+    	scratch.out.writeVarint(id);
+    	writeMessage(message, codes, scratch.out, scratch.block);
+    	return scratch.finish();
+    }
+    
+    /**
+     * Compresses the given String message like compress, but with the canonical
+     * Huffman code of the same code lengths, and prefixed by a compact header of
+     * (symbol, code length) pairs so that the result can be decompressed by
+     * decompressCanonical without this instance or its training corpus.
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} holding the code length header followed by the
+     *         compressed message in the same format as compress.
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
+     */
+    public byte[] compressCanonical (String message) {
+    	Scratch scratch = SCRATCH.get();
+    	scratch.out.reset();
+    	canonicalCodes.writeHeader(scratch.out);
+    	writeMessage(message, canonicalCodes, scratch.out, scratch.block);
+    	return scratch.finish();
+    }
+    
+    /**
+     * Writes the length prefix and then each character's code, shifted straight
+     * into the buffer, splitting long messages into length-prefixed blocks
+     * @param message	The characters to encode
+     * 		  table		The code to encode it with
+     * 		  out		The bit stream being written
+     * 		  block		Scratch writer for one block at a time
+     */
+    private static void writeMessage(CharSequence message, CodeTable table, BitWriter out, BitWriter block) {
+    	int msgLength = message.length();
+    	out.writeVarint(msgLength);
+    	if (msgLength <= BLOCK_SIZE) {
+    		encodeRange(message, 0, msgLength, table, out);
+    		out.align();
+    		return;
     	}
     	
-    	//constructing the byte array
-    	while (counter < encoded.length() - 8) {
-    		river.write(Integer.parseInt(encoded.substring(counter, counter + 8), 2));
-    		counter += 8;
+    	for (int start = 0; start < msgLength; start += BLOCK_SIZE) {
+    		block.reset();
+    		encodeRange(message, start, Math.min(start + BLOCK_SIZE, msgLength), table, block);
+    		block.align();
+    		out.writeVarint(block.size());
+    		out.append(block);
+    	}
+    }
+    
+    /**
+     * Writes the code of each character in message[start, end)
+     * @param message	The String to encode
+     * 		  start		Index of the first character to encode
+     * 		  end		Index one past the last character to encode
+     * 		  table		The code to encode it with
+     * 		  out		The bit stream being written
+     */
+    static void encodeRange(CharSequence message, int start, int end, CodeTable table, BitWriter out) {
+    	for (int i = start; i < end; i++) {
+    		table.encode(message.charAt(i), out);
     	}
-    	river.write(Integer.parseInt(encoded.substring(counter, encoded.length()), 2) << 8 - encoded.length() % 8);
-    	result = river.toByteArray();
-    	return result;
     }
     
     
@@ -136,55 +613,198 @@ public class Huffman {
     
     /**
      * Decompresses the given compressed array of bytes into their original,
-     * String representation. Uses the trieRoot field (the Huffman Trie) that
-     * generated the compressed message during decoding.
+     * String representation. Uses the decode table built from the Huffman Trie
+     * that generated the compressed message during decoding.
      * @param compressedMsg {@code byte[]} representing the compressed corpus with the
      *        Huffman coded bytecode. Formatted as 3 components: (1) the
-     *        first byte contains the number of characters in the message,
-     *        (2) the bitstring containing the message itself, (3) possible
-     *        0-padding on the final byte.
+     *        number of characters in the message as a varint (a single byte
+     *        for messages under 128 characters), (2) the bitstring containing
+     *        the message itself, (3) possible 0-padding on the final byte.
+     *        Messages longer than BLOCK_SIZE characters instead split (2) and
+     *        (3) into blocks of BLOCK_SIZE characters, each prefixed by its
+     *        padded length in bytes as a varint.
      * @return Decompressed String representation of the compressed bytecode message.
      */
     public String decompress (byte[] compressedMsg) {
-    	int msgLength = compressedMsg[0];
-    	String bitStr = "";
-    	
-    	//reconstructing the bitstring from the byte array; uses helper method getBitStr()
-    	for (int i = 1; i < compressedMsg.length; i++) {
-    		bitStr += getBitStr((int) compressedMsg[i]);
+    	return readMessage(new BitReader(compressedMsg, 0, compressedMsg.length), codes, runs);
+    }
+    
+    /**
+     * Decompresses a message in the format of compress that starts at the given
+     * reader's position, such as after the ID of a HuffmanRegistry frame
+     * @param in The bit stream positioned at the length prefix
+     * @return Decompressed String representation of the compressed bytecode message.
+     */
+    String decompress (BitReader in) {
+    	return readMessage(in, codes, runs);
+    }
+    
+    /**
+     * Decompresses a message in the format of compress from the caller's buffer
+     * (heap or direct) straight into the caller's array
+     * @param src	The buffer holding the compressed message at its position,
+     * 				which advances past it
+     * 		  dst	The array receiving the decoded characters from index 0
+     * @return 	The number of chars written
+     * @throws BufferOverflowException if the message is longer than dst, in
+     *         which case neither buffer changes
+     * @throws IllegalArgumentException if the length prefix is out of range
+     */
+    public int decompress (ByteBuffer src, char[] dst) {
+    	BitReader in 	= new BitReader(src, src.position(), src.limit());
+    	int length 		= in.readLength();
+    	if (length > dst.length) {
+    		throw new BufferOverflowException();
     	}
-    	
-    	//decoding the encoding
-    	return decode (bitStr, msgLength);
+    	readBody(in, codes, runs, dst, 0, length);
+    	src.position(in.bytePosition());
+    	return length;
+    }
+    
+    /**
+     * Decompresses a message in the format of compress from the caller's buffer
+     * into the caller's CharBuffer, decoding straight into its backing array when
+     * it has one
+     * @param src	The buffer holding the compressed message at its position,
+     * 				which advances past it
+     * 		  dst	The buffer receiving the decoded characters at its position,
+     * 				which advances past them
+     * @return 	The number of chars written
+     * @throws BufferOverflowException if the message is longer than dst has room
+     *         for, in which case neither buffer changes
+     * @throws IllegalArgumentException if the length prefix is out of range
+     */
+    public int decompress (ByteBuffer src, CharBuffer dst) {
+    	BitReader in 	= new BitReader(src, src.position(), src.limit());
+    	int length 		= in.readLength();
+    	if (length > dst.remaining()) {
+    		throw new BufferOverflowException();
+    	}
+    	if (dst.hasArray()) {
+    		readBody(in, codes, runs, dst.array(), dst.arrayOffset() + dst.position(), length);
+    		dst.position(dst.position() + length);
+    	} else {
+    		char[] chars = SCRATCH.get().chars(length);
+    		readBody(in, codes, runs, chars, 0, length);
+    		dst.put(chars, 0, length);
+    	}
+    	src.position(in.bytePosition());
+    	return length;
+    }
+    
+    /**
+     * Decompresses like decompress, but with one decode table probe per character
+     * rather than per run of characters; kept as the baseline for benchmarks
+     * @param compressedMsg {@code byte[]} in the format of compress
+     * @return Decompressed String representation of the compressed bytecode message.
+     */
+    String decompressBySymbol (byte[] compressedMsg) {
+    	return readMessage(new BitReader(compressedMsg, 0, compressedMsg.length), codes, null);
+    }
+    
+    /**
+     * Decompresses a message produced by compressCanonical on any Huffman instance,
+     * rebuilding the canonical code from the header at the front of the message.
+     * @param compressedMsg {@code byte[]} holding a code length header followed by
+     *        the compressed message in the same format as compress.
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IllegalArgumentException if the header or bitstring is malformed
+     */
+    public static String decompressCanonical (byte[] compressedMsg) {
+    	BitReader in = new BitReader(compressedMsg, 0, compressedMsg.length);
+    	return readMessage(in, CodeTable.readHeader(in), null);
+    }
+    
+    /**
+     * Reads the length prefix and then decodes that many characters, one table
+     * probe per run of characters (or per character without a RunTable), block
+     * by block for long messages
+     * @param 	in		The bit stream positioned at the length prefix
+     * 			table	The code the message was encoded with
+     * 			runs	The RunTable of that code, or null to decode by symbol
+     * @return 	result	The decoded message
+     * @throws IllegalArgumentException if the length prefix is out of range
+     */
+    private static String readMessage(BitReader in, CodeTable table, RunTable runs) {
+    	int length 		= in.readLength();
+    	char[] result 	= SCRATCH.get().chars(length);
+    	readBody(in, table, runs, result, 0, length);
+    	return new String(result, 0, length);
+    }
+    
+    /**
+     * Decodes the body of a message of the given length into result, leaving
+     * the reader aligned just past the message
+     * @param in		The bit stream positioned just after the length prefix
+     * 		  table		The code the message was encoded with
+     * 		  runs		The RunTable of that code, or null to decode by symbol
+     * 		  result	The array receiving the decoded characters
+     * 		  offset	Index in result of the first character
+     * 		  length	Number of characters in the message
+     * @throws IllegalArgumentException if the message is truncated
+     */
+    private static void readBody(BitReader in, CodeTable table, RunTable runs, char[] result, int offset, int length) {
+    	if (length <= BLOCK_SIZE) {
+    		decodeRange(in, table, runs, result, offset, offset + length);
+    		in.align();
+    	} else {
+    		for (int start = 0; start < length; start += BLOCK_SIZE) {
+    			in.readVarint();
+    			decodeRange(in, table, runs, result, offset + start, offset + Math.min(start + BLOCK_SIZE, length));
+    			in.align();
+    		}
+    	}
+    	in.checkEnd();
     }
     
     /**
-     * Once the correct bitstring has been constructed, this methods decodes it using the global encodingMap
+     * Decodes characters into result[start, end)
+     * @param in		The bit stream positioned at the first code
+     * 		  table		The code the message was encoded with
+     * 		  result	The array receiving the decoded characters
+     * 		  start		Index of the first character to decode
+     * 		  end		Index one past the last character to decode
+     */
+    static void decodeRange(BitReader in, CodeTable table, char[] result, int start, int end) {
+    	for (int i = start; i < end; i++) {
+    		result[i] = (char) table.decode(in);
+    	}
+    }
+    
+    /**
+     * Decodes characters into result[start, end) with the RunTable if there is one
+     */
+    static void decodeRange(BitReader in, CodeTable table, RunTable runs, char[] result, int start, int end) {
+    	if (runs != null) {
+    		runs.decode(in, result, start, end);
+    	} else {
+    		decodeRange(in, table, result, start, end);
+    	}
+    }
+    
+    /**
+     * Decodes a bitstring of '0' and '1' characters by walking the Huffman Trie
      * @param 	input		The String to decode
      * 			msgLength	The known number of chars in result
      * @return 	result		A decoded representation of the input string
      */
     public String decode(String input, int msgLength) {
-    	int counter 	= 0;
-    	int index		= 0;
-    	int endIndex	= 0;
-    	String result	= "";
+    	StringBuilder result 	= new StringBuilder(msgLength);
+    	HuffNode node 			= trieRoot;
+    	int index 				= 0;
     	
-    	Map<String, Character> reverseMap = new HashMap<>();
-    	for (Character key: encodingMap.keySet()) {
-    		reverseMap.put(encodingMap.get(key), key);
-    	}
-    	while (counter < msgLength) {
-    		   		
-    		String key = input.substring(index, endIndex + 1);
-    		if (reverseMap.containsKey(key)) {
-    			result += reverseMap.get(key);
-    			index = endIndex + 1;
-    			counter++;
+    	while (result.length() < msgLength) {
+    		node = (input.charAt(index++) == '1') ? node.left : node.right;
+    		if (node.escape) {
+    			result.append((char) Integer.parseInt(input.substring(index, index + 16), 2));
+    			index += 16;
+    			node = trieRoot;
+    		} else if (node.isLeaf()) {
+    			result.append(node.character);
+    			node = trieRoot;
     		}
-    		endIndex++;
     	}
-    	return result;
+    	return result.toString();
     }
     
     /**
@@ -204,6 +824,331 @@ public class Huffman {
     	}
     	return result;
     }
+    
+    
+    // -----------------------------------------------
+    // Parallel Blocks
+    // -----------------------------------------------
+    
+    /**
+     * Compresses the given message exactly as compress does, but encodes the
+     * blocks of long messages concurrently on the common ForkJoinPool.
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} identical to compress(message)
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
+     */
+    public byte[] compressParallel (String message) {
+    	return compressParallel(message, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Compresses the given message exactly as compress does, but encodes the
+     * blocks of long messages concurrently on the given pool. The per-block
+     * byte lengths of the format double as the index decompressParallel
+     * uses to fan decoding back out.
+     * @param message String representing the corpus to compress.
+     * @param pool The pool to encode blocks on
+     * @return {@code byte[]} identical to compress(message)
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
+     */
+    public byte[] compressParallel (String message, ForkJoinPool pool) {
+    	int msgLength = message.length();
+    	if (msgLength <= BLOCK_SIZE) {
+    		return compress(message);
+    	}
+    	
+    	//encoding every block into its own buffer, then stitching them together
+    	BitWriter[] blocks = new BitWriter[(msgLength - 1) / BLOCK_SIZE + 1];
+    	pool.invoke(new BlockTask(0, blocks.length, b -> {
+    		BitWriter block = new BitWriter(BLOCK_SIZE / 2);
+    		int start 		= b * BLOCK_SIZE;
+    		encodeRange(message, start, Math.min(start + BLOCK_SIZE, msgLength), codes, block);
+    		block.align();
+    		blocks[b] = block;
+    	}));
+    	
+    	int total = 0;
+    	for (BitWriter block: blocks) {
+    		total += block.size() + 3;
+    	}
+    	BitWriter out = new BitWriter(total + 5);
+    	out.writeVarint(msgLength);
+    	for (BitWriter block: blocks) {
+    		out.writeVarint(block.size());
+    		out.append(block);
+    	}
+    	return out.toByteArray();
+    }
+    
+    /**
+     * Decompresses a message made by compress or compressParallel, decoding the
+     * blocks of long messages concurrently on the common ForkJoinPool.
+     * @param compressedMsg {@code byte[]} in the format made by compress
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public String decompressParallel (byte[] compressedMsg) {
+    	return decompressParallel(compressedMsg, ForkJoinPool.commonPool());
+    }
+    
+    /**
+     * Decompresses a message made by compress or compressParallel, decoding the
+     * blocks of long messages concurrently on the given pool.
+     * @param compressedMsg {@code byte[]} in the format made by compress
+     * @param pool The pool to decode blocks on
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public String decompressParallel (byte[] compressedMsg, ForkJoinPool pool) {
+    	BitReader in 	= new BitReader(compressedMsg, 0, compressedMsg.length);
+    	int msgLength 	= in.readLength();
+    	if (msgLength <= BLOCK_SIZE) {
+    		return decompress(compressedMsg);
+    	}
+    	
+    	//walking the block lengths to find where each block starts
+    	int[] starts 	= new int[(msgLength - 1) / BLOCK_SIZE + 1];
+    	int[] limits 	= new int[starts.length];
+    	int position 	= in.bytePosition();
+    	for (int b = 0; b < starts.length; b++) {
+    		BitReader index = new BitReader(compressedMsg, position, compressedMsg.length);
+    		long size 		= index.readVarint();
+    		starts[b] 		= index.bytePosition();
+    		if (size < 0 || starts[b] + size > compressedMsg.length) {
+    			throw new IllegalArgumentException("Truncated Huffman block " + b);
+    		}
+    		limits[b] 		= starts[b] + (int) size;
+    		position 		= limits[b];
+    	}
+    	
+    	char[] result = new char[msgLength];
+    	pool.invoke(new BlockTask(0, starts.length, b -> {
+    		int start 		= b * BLOCK_SIZE;
+    		BitReader block = new BitReader(compressedMsg, starts[b], limits[b]);
+    		decodeRange(block, codes, runs, result, start, Math.min(start + BLOCK_SIZE, result.length));
+    		block.checkEnd();
+    	}));
+    	return new String(result);
+    }
+    
+    /**
+     * Fork/join task that runs an action on every block index in [lo, hi),
+     * splitting the range in half until single blocks remain
+     */
+    private static class BlockTask extends RecursiveAction {
+    	
+    	private static final long serialVersionUID = 1L;
+    	
+    	final int lo, hi;
+    	final IntConsumer action;
+    	
+    	BlockTask (int lo, int hi, IntConsumer action) {
+    		this.lo 	= lo;
+    		this.hi 	= hi;
+    		this.action = action;
+    	}
+    	
+    	@Override
+    	protected void compute () {
+    		if (hi - lo == 1) {
+    			action.accept(lo);
+    			return;
+    		}
+    		int mid = (lo + hi) >>> 1;
+    		invokeAll(new BlockTask(lo, mid, action), new BlockTask(mid, hi, action));
+    	}
+    	
+    }
+    
+    
+    // -----------------------------------------------
+    // Interleaved Streams
+    // -----------------------------------------------
+    
+    /**
+     * Compresses the given message with the same codes as compress, but deals the
+     * characters of each block out round-robin to STREAMS separate bitstrings, so
+     * that decompressInterleaved can decode them in lockstep: the streams'
+     * lookups do not depend on each other, so a single core overlaps them.
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} holding the number of characters in the message as a
+     *         varint, then for each block of up to BLOCK_SIZE characters the
+     *         padded byte length of each stream as a varint followed by the
+     *         streams themselves. Character i of a block is in stream i % STREAMS.
+     * @throws IllegalArgumentException if the message contains a character
+     *         that did not appear in the corpus, and there is no escape code
+     */
+    public byte[] compressInterleaved (String message) {
+    	Scratch scratch 	= SCRATCH.get();
+    	BitWriter[] streams = scratch.streams();
+    	int msgLength 		= message.length();
+    	scratch.out.reset();
+    	scratch.out.writeVarint(msgLength);
+    	for (int start = 0; start < msgLength; start += BLOCK_SIZE) {
+    		int end = Math.min(start + BLOCK_SIZE, msgLength);
+    		for (BitWriter stream: streams) {
+    			stream.reset();
+    		}
+    		for (int i = start; i < end; i++) {
+    			codes.encode(message.charAt(i), streams[(i - start) % STREAMS]);
+    		}
+    		for (BitWriter stream: streams) {
+    			stream.align();
+    			scratch.out.writeVarint(stream.size());
+    		}
+    		for (BitWriter stream: streams) {
+    			scratch.out.append(stream);
+    		}
+    	}
+    	return scratch.finish();
+    }
+    
+    /**
+     * Decompresses a message made by compressInterleaved, decoding each block's
+     * streams in lockstep on the calling thread
+     * @param compressedMsg {@code byte[]} in the format made by compressInterleaved
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IllegalArgumentException if the message is malformed
+     */
+    public String decompressInterleaved (byte[] compressedMsg) {
+    	BitReader in 			= new BitReader(compressedMsg, 0, compressedMsg.length);
+    	int length 				= in.readLength();
+    	char[] result 			= SCRATCH.get().chars(length);
+    	long[] bitPositions 	= new long[STREAMS];
+    	int[] limits 			= new int[STREAMS];
+    	long[] sizes 			= new long[STREAMS];
+    	BitReader[] readers 	= new BitReader[STREAMS];
+    	ByteBuffer words 		= ByteBuffer.wrap(compressedMsg);
+    	//the readers span the whole message and are moved by seek, so a stream
+    	//read past its end sees the next stream's bits instead of 0 padding;
+    	//either way the read is caught by the check against its limit
+    	for (int s = 0; s < STREAMS; s++) {
+    		readers[s] = new BitReader(compressedMsg, 0, compressedMsg.length);
+    	}
+    	for (int start = 0; start < length; start += BLOCK_SIZE) {
+    		//the stream lengths lead the block, and the streams follow back to back
+    		for (int s = 0; s < STREAMS; s++) {
+    			sizes[s] = in.readVarint();
+    		}
+    		int position = in.bytePosition();
+    		for (int s = 0; s < STREAMS; s++) {
+    			if (sizes[s] < 0 || sizes[s] > compressedMsg.length - position) {
+    				throw new IllegalArgumentException("Truncated Huffman block " + start / BLOCK_SIZE);
+    			}
+    			bitPositions[s] = 8L * position;
+    			limits[s] 		= position + (int) sizes[s];
+    			position 		= limits[s];
+    		}
+    		decodeStreams(words, readers, bitPositions, limits, result, start, Math.min(start + BLOCK_SIZE, length));
+    		for (int s = 0; s < STREAMS; s++) {
+    			if (bitPositions[s] > 8L * limits[s]) {
+    				throw new IllegalArgumentException("Truncated Huffman block " + start / BLOCK_SIZE);
+    			}
+    		}
+    		in.seek(8L * position);
+    	}
+    	return new String(result, 0, length);
+    }
+    
+    /**
+     * Decodes characters into result[start, end), character i from stream
+     * (i - start) % STREAMS: in lockstep rounds while every stream has plenty
+     * left, then the last few codes of each stream by its reader
+     * @param words			The bytes holding the block's streams
+     * 		  readers		A reader for each stream, moved by seek
+     * 		  bitPositions	Bit index of each stream's next code
+     * 		  limits		Index one past the last byte of each stream
+     * 		  result		The array receiving the decoded characters
+     * 		  start			Index of the first character to decode
+     * 		  end			Index one past the last character to decode
+     */
+    private void decodeStreams(ByteBuffer words, BitReader[] readers, long[] bitPositions, int[] limits, char[] result, int start, int end) {
+    	int i = codes.decodeLockstep(words, readers, bitPositions, limits, result, start, end);
+    	for (int s = 0; s < STREAMS; s++) {
+    		readers[s].seek(bitPositions[s]);
+    		for (int j = i + s; j < end; j += STREAMS) {
+    			result[j] = (char) codes.decode(readers[s]);
+    		}
+    		bitPositions[s] = readers[s].bitPosition();
+    	}
+    }
+    
+    
+    // -----------------------------------------------
+    // Per-Thread Scratch
+    // -----------------------------------------------
+    
+    /**
+     * Scratch buffers for the calling thread, so that concurrent calls on a shared
+     * instance never contend and allocate nothing beyond their output
+     */
+    private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
+    
+    /**
+     * A thread's reusable encode / decode buffers. Buffers that grow past
+     * MAX_RETAINED for one huge message are dropped afterwards rather than
+     * pinned to the thread for good.
+     */
+    private static class Scratch {
+    	
+    	static final int MAX_RETAINED = 1 << 20;
+    	
+    	BitWriter out 	= new BitWriter(4096);
+    	BitWriter block = new BitWriter(BLOCK_SIZE / 2);
+    	char[] chars 	= new char[4096];
+    	BitWriter[] streams;
+    	
+    	/**
+    	 * @return a copy of the bytes written to out, trimming out if it grew too big
+    	 */
+    	byte[] finish () {
+    		byte[] result = out.toByteArray();
+    		trim();
+    		return result;
+    	}
+    	
+    	/**
+    	 * Replaces out if one huge message grew it past MAX_RETAINED
+    	 */
+    	void trim () {
+    		if (out.capacity() > MAX_RETAINED) {
+    			out = new BitWriter(4096);
+    		}
+    	}
+    	
+    	/**
+    	 * @return streams	STREAMS writers for the sub-streams of an interleaved block
+    	 */
+    	BitWriter[] streams () {
+    		if (streams == null) {
+    			streams = new BitWriter[STREAMS];
+    			for (int s = 0; s < STREAMS; s++) {
+    				streams[s] = new BitWriter(BLOCK_SIZE / (2 * STREAMS));
+    			}
+    		}
+    		return streams;
+    	}
+    	
+    	/**
+    	 * @param  n 		number of chars needed
+    	 * @return chars	a char[] of at least n chars, kept for reuse unless huge
+    	 */
+    	char[] chars (int n) {
+    		if (n <= chars.length) {
+    			return chars;
+    		}
+    		char[] result = new char[n];
+    		if (n <= MAX_RETAINED) {
+    			chars = result;
+    		}
+    		return result;
+    	}
+    	
+    }
+    
+    
     // -----------------------------------------------
     // Huffman Trie
     // -----------------------------------------------
@@ -220,6 +1165,7 @@ public class Huffman {
         HuffNode left, right;
         char character;
         int count;
+        boolean escape;     // leaf of the escape code, followed by a raw 16-bit char
         
         HuffNode (char character, int count) {
             this.count = count;
@@ -0,0 +1,259 @@
+package huffman;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * HuffmanFiles compresses and decompresses whole files by memory-mapping
+ * the input and collecting the output in a direct buffer, so a file is
+ * never copied onto the heap or decoded through a charset. Every byte of
+ * the file is treated as one character (as if the file were ISO-8859-1
+ * text), which makes any file, text or not, round-trip exactly.
+ * 
+ * The model is trained on the input file itself and the output is in the
+ * format of Huffman.compressCanonical, so archives are self-describing.
+ */
+public class HuffmanFiles {
+    
+    /**
+     * Bytes of a file mapped at once; a multiple of BLOCK_SIZE so that
+     * no block of input straddles two windows
+     */
+    private static final long WINDOW = 1L << 30;
+    
+    /**
+     * Size of the direct buffer collecting output; larger than any block
+     */
+    private static final int OUTPUT_BUFFER = 1 << 20;
+    
+    /**
+     * Compresses the given file with a model trained on its own byte counts
+     * @param in The file to compress
+     * @param out The archive to create (or overwrite)
+     * @return The size of the archive in bytes
+     * @throws IOException if either file cannot be accessed
+     */
+    public static long compress (Path in, Path out) throws IOException {
+        try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size       = src.size();
+            long[] counts   = new long[256];
+            for (long offset = 0; offset < size; offset += WINDOW) {
+                MappedByteBuffer window = map(src, offset, size);
+                for (int i = 0; i < window.limit(); i++) {
+                    counts[window.get(i) & 0xFF]++;
+                }
+            }
+            CodeTable table = new Huffman(modelCounts(counts, size)).canonicalCodeTable();
+            
+            //header, then each block of input encoded straight from the mapped window
+            ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER);
+            BitWriter prefix  = new BitWriter(64);
+            BitWriter block   = new BitWriter(Huffman.BLOCK_SIZE / 2);
+            table.writeHeader(prefix);
+            prefix.writeVarint(size);
+            for (long offset = 0; offset < size; offset += WINDOW) {
+                MappedByteBuffer window = map(src, offset, size);
+                for (int start = 0; start < window.limit(); start += Huffman.BLOCK_SIZE) {
+                    int end = Math.min(start + Huffman.BLOCK_SIZE, window.limit());
+                    block.reset();
+                    for (int i = start; i < end; i++) {
+                        table.encode(window.get(i) & 0xFF, block);
+                    }
+                    block.align();
+                    if (size > Huffman.BLOCK_SIZE) {
+                        prefix.writeVarint(block.size());
+                    }
+                    write(prefix, output, dst);
+                    write(block, output, dst);
+                }
+            }
+            write(prefix, output, dst);
+            drain(output, dst);
+            return dst.position();
+        }
+    }
+    
+    /**
+     * Decompresses an archive made by compress (or Huffman.compressCanonical
+     * of a String of characters no larger than 0xFF)
+     * @param in The archive to decompress
+     * @param out The file to create (or overwrite)
+     * @return The size of the decompressed file in bytes
+     * @throws IOException if either file cannot be accessed
+     * @throws IllegalArgumentException if the archive is malformed
+     */
+    public static long decompress (Path in, Path out) throws IOException {
+        try (FileChannel src = FileChannel.open(in, StandardOpenOption.READ);
+             FileChannel dst = FileChannel.open(out, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            long size               = src.size();
+            long windowStart        = 0;
+            MappedByteBuffer window = map(src, 0, size);
+            BitReader reader        = new BitReader(window, 0, window.limit());
+            CodeTable table         = CodeTable.readHeader(reader);
+            long length             = reader.readVarint();
+            long offset             = reader.bytePosition();
+            if (table.lengths.length > 256) {
+                throw new IllegalArgumentException("Archive holds characters above 0xFF");
+            }
+            //every character takes at least a bit of the file, as in BitReader.readLength
+            if (length < 0 || length > 8 * size - reader.bitPosition()) {
+                throw new IllegalArgumentException("Archive too long for its " + size + " bytes: " + length);
+            }
+            
+            ByteBuffer output = ByteBuffer.allocateDirect(OUTPUT_BUFFER);
+            for (long done = 0; done < length; ) {
+                //remapping whenever the next block might run off the end of the window
+                if (offset - windowStart + Huffman.MAX_BLOCK_BYTES + 16 > window.limit() && windowStart + window.limit() < size) {
+                    windowStart = offset;
+                    window      = map(src, offset, size);
+                }
+                reader = new BitReader(window, (int) (offset - windowStart), window.limit());
+                if (length > Huffman.BLOCK_SIZE) {
+                    reader.readVarint();
+                }
+                
+                int n = (int) Math.min(Huffman.BLOCK_SIZE, length - done);
+                if (output.remaining() < n) {
+                    drain(output, dst);
+                }
+                for (int i = 0; i < n; i++) {
+                    output.put((byte) table.decode(reader));
+                }
+                reader.align();
+                reader.checkEnd();
+                offset = windowStart + reader.bytePosition();
+                done  += n;
+            }
+            drain(output, dst);
+            return length;
+        }
+    }
+    
+    /**
+     * Compresses the given file like compress, but through the in-memory
+     * String API, for comparison; the archives are identical
+     * @param in The file to compress
+     * @param out The archive to create (or overwrite)
+     * @return The size of the archive in bytes
+     * @throws IOException if either file cannot be accessed
+     */
+    public static long compressInMemory (Path in, Path out) throws IOException {
+        byte[] data   = Files.readAllBytes(in);
+        long[] counts = new long[256];
+        for (byte b: data) {
+            counts[b & 0xFF]++;
+        }
+        Huffman model = new Huffman(modelCounts(counts, data.length));
+        byte[] result = model.compressCanonical(new String(data, StandardCharsets.ISO_8859_1));
+        Files.write(out, result);
+        return result.length;
+    }
+    
+    /**
+     * Decompresses the given archive like decompress, but through the
+     * in-memory String API, for comparison
+     * @param in The archive to decompress
+     * @param out The file to create (or overwrite)
+     * @return The size of the decompressed file in bytes
+     * @throws IOException if either file cannot be accessed
+     */
+    public static long decompressInMemory (Path in, Path out) throws IOException {
+        byte[] result = Huffman.decompressCanonical(Files.readAllBytes(in)).getBytes(StandardCharsets.ISO_8859_1);
+        Files.write(out, result);
+        return result.length;
+    }
+    
+    /**
+     * Command line entry point, reporting the throughput of each run:
+     * <pre>HuffmanFiles (compress | decompress) &lt;in&gt; &lt;out&gt; [--heap]</pre>
+     * where --heap uses the in-memory String API instead of mapped files.
+     * @param args The command, input path, output path and optional flag
+     * @throws IOException if either file cannot be accessed
+     */
+    public static void main (String[] args) throws IOException {
+        boolean compress = args.length >= 3 && args[0].equals("compress");
+        if (args.length < 3 || !(compress || args[0].equals("decompress"))) {
+            System.err.println("usage: HuffmanFiles (compress | decompress) <in> <out> [--heap]");
+            System.exit(2);
+        }
+        boolean heap = args.length > 3 && args[3].equals("--heap");
+        Path in      = Paths.get(args[1]);
+        Path out     = Paths.get(args[2]);
+        
+        long start = System.nanoTime();
+        if (compress) {
+            if (heap) { compressInMemory(in, out); } else { compress(in, out); }
+        } else {
+            if (heap) { decompressInMemory(in, out); } else { decompress(in, out); }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        
+        long inSize  = Files.size(in);
+        long outSize = Files.size(out);
+        long raw     = compress ? inSize : outSize;
+        System.out.printf("%s%s: %d -> %d bytes in %.3f s (%.1f MB/s uncompressed, ratio %.3f)%n",
+            args[0], heap ? " (heap)" : "", inSize, outSize, seconds,
+            raw / seconds / 1e6, compress ? (double) outSize / Math.max(1, inSize) : (double) inSize / Math.max(1, outSize));
+    }
+    
+    /**
+     * Scales 64-bit byte counts into the int counts a Huffman model is
+     * built from, keeping every byte that appears at a count of at least 1
+     * @param counts Occurrences of each byte value
+     * @param size Total number of bytes counted
+     * @return Counts whose sum fits comfortably in an int
+     */
+    private static int[] modelCounts (long[] counts, long size) {
+        long scale   = size / (Integer.MAX_VALUE / 2) + 1;
+        int[] result = new int[256];
+        for (int b = 0; b < 256; b++) {
+            if (counts[b] > 0) {
+                result[b] = (int) Math.max(1, counts[b] / scale);
+            }
+        }
+        //an empty file still needs a (never used) code to build a model from
+        if (size == 0) {
+            result[0] = 1;
+        }
+        return result;
+    }
+    
+    /**
+     * Maps the window of the file starting at the given offset
+     */
+    private static MappedByteBuffer map (FileChannel src, long offset, long size) throws IOException {
+        return src.map(FileChannel.MapMode.READ_ONLY, offset, Math.min(WINDOW, size - offset));
+    }
+    
+    /**
+     * Copies a BitWriter's bytes into the output buffer, draining it to the
+     * channel first if they will not fit, and resets the writer
+     */
+    private static void write (BitWriter bits, ByteBuffer output, FileChannel dst) throws IOException {
+        if (output.remaining() < bits.size()) {
+            drain(output, dst);
+        }
+        bits.writeTo(output);
+        bits.reset();
+    }
+    
+    /**
+     * Writes out and clears everything in the output buffer
+     */
+    private static void drain (ByteBuffer output, FileChannel dst) throws IOException {
+        output.flip();
+        while (output.hasRemaining()) {
+            dst.write(output);
+        }
+        output.clear();
+    }
+    
+}
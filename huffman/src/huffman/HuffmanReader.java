@@ -0,0 +1,164 @@
+package huffman;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * HuffmanReader decompresses a stream written by HuffmanWriter, holding
+ * only one block of characters (and its compressed bytes) in memory at
+ * a time.
+ */
+public class HuffmanReader extends Reader {
+    
+    private final InputStream   in;
+    private final CodeTable     table;
+    private final RunTable      runs;       // null when the model decodes by symbol
+    private final AdaptiveCode  adaptive;   // null unless in adaptive mode
+    private final char[]        block = new char[Huffman.BLOCK_SIZE];
+    private byte[]              bytes = new byte[Huffman.BLOCK_SIZE / 2];
+    private int                 position, count;
+    private boolean             finished, closed;
+    
+    /**
+     * Constructs a new HuffmanReader
+     * @param model The Huffman instance whose encoding compressed the stream
+     * @param in The stream of compressed blocks
+     */
+    public HuffmanReader (Huffman model, InputStream in) {
+        this(model, in, false);
+    }
+    
+    /**
+     * Constructs a new HuffmanReader, optionally in adaptive mode
+     * @param model The Huffman instance whose encoding compressed the stream
+     *        (or, in adaptive mode, its first block)
+     * @param in The stream of compressed blocks
+     * @param adaptive true if the stream was written in adaptive mode
+     */
+    public HuffmanReader (Huffman model, InputStream in, boolean adaptive) {
+        this.in       = in;
+        this.table    = model.codeTable();
+        this.runs     = model.runTable();
+        this.adaptive = adaptive ? new AdaptiveCode(model) : null;
+    }
+    
+    /**
+     * Constructs a new HuffmanReader over an NIO channel
+     * @param model The Huffman instance whose encoding compressed the stream
+     * @param channel The channel of compressed blocks
+     */
+    public HuffmanReader (Huffman model, ReadableByteChannel channel) {
+        this(model, Channels.newInputStream(channel), false);
+    }
+    
+    /**
+     * Constructs a new HuffmanReader over an NIO channel, optionally in
+     * adaptive mode
+     * @param model The Huffman instance whose encoding compressed the stream
+     *        (or, in adaptive mode, its first block)
+     * @param channel The channel of compressed blocks
+     * @param adaptive true if the stream was written in adaptive mode
+     */
+    public HuffmanReader (Huffman model, ReadableByteChannel channel, boolean adaptive) {
+        this(model, Channels.newInputStream(channel), adaptive);
+    }
+    
+    /**
+     * Reads decompressed characters, decoding the next block when the
+     * current one runs out
+     * @throws IOException if the stream ends before its end-of-stream marker
+     * @throws IllegalArgumentException if a block is malformed
+     */
+    @Override
+    public int read (char[] cbuf, int off, int len) throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+        if (len == 0) {
+            return 0;
+        }
+        if (position == count && !readBlock()) {
+            return -1;
+        }
+        int n = Math.min(len, count - position);
+        System.arraycopy(block, position, cbuf, off, n);
+        position += n;
+        return n;
+    }
+    
+    @Override
+    public void close () throws IOException {
+        closed = true;
+        in.close();
+    }
+    
+    /**
+     * Reads and decodes the next block into the character buffer
+     * @return false if the end-of-stream marker was reached instead
+     */
+    private boolean readBlock () throws IOException {
+        if (finished) {
+            return false;
+        }
+        long chars = readVarint();
+        if (chars == 0) {
+            finished = true;
+            return false;
+        }
+        long length = readVarint();
+        if (chars < 0 || chars > Huffman.BLOCK_SIZE || length < 0 || length > Huffman.MAX_BLOCK_BYTES) {
+            throw new IllegalArgumentException("Malformed Huffman block");
+        }
+        if (length > bytes.length) {
+            bytes = new byte[(int) length];
+        }
+        readFully(bytes, (int) length);
+        
+        BitReader bits = new BitReader(bytes, 0, (int) length);
+        if (adaptive == null) {
+            Huffman.decodeRange(bits, table, runs, block, 0, (int) chars);
+        } else {
+            for (int i = 0; i < chars; i++) {
+                block[i] = adaptive.decode(bits);
+            }
+            adaptive.update(block, (int) chars);
+        }
+        bits.checkEnd();
+        position = 0;
+        count    = (int) chars;
+        return true;
+    }
+    
+    private long readVarint () throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.read();
+            if (b < 0) {
+                throw new EOFException("Huffman stream ended without an end-of-stream marker");
+            }
+            if (shift == 63 && b > 1) {
+                break;      //the 10th byte holds bit 63 alone
+            }
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+    
+    private void readFully (byte[] b, int length) throws IOException {
+        for (int n = 0; n < length; ) {
+            int read = in.read(b, n, length - n);
+            if (read < 0) {
+                throw new EOFException("Huffman stream ended mid-block");
+            }
+            n += read;
+        }
+    }
+    
+}
@@ -0,0 +1,205 @@
+package huffman;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * HuffmanRegistry keeps trained Huffman models on disk under numeric IDs (one
+ * per tenant or message type, say) and stamps each compressed frame with the
+ * ID of the model that made it, so any node sharing the directory can decode
+ * any frame with no coordination. Models are loaded lazily and cached, with
+ * the least recently used evicted beyond a fixed number.
+ * 
+ * A model file holds the model's character counts and build options, from
+ * which the model is rebuilt exactly: a flag byte (bit 0 set if the model has
+ * an escape code, bit 1 if its code lengths are limited), the maximum code
+ * length as a byte if limited, the number of counted characters as a varint,
+ * then for each in ascending order the gap from the previous character and
+ * its count, both varints.
+ * 
+ * Frames are the model ID as a varint followed by the model's compress
+ * output. Registries are safe to share between threads.
+ */
+public class HuffmanRegistry {
+    
+    /**
+     * Flag bits of a model file
+     */
+    private static final int ESCAPE = 1, LIMITED = 2;
+    
+    private final Path                 directory;
+    private final Map<Long, Huffman>   cache;
+    
+    /**
+     * Constructs a new HuffmanRegistry over the given directory
+     * @param directory The directory holding the model files
+     * @param capacity The most models to keep loaded at once
+     */
+    public HuffmanRegistry (Path directory, int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        this.directory = directory;
+        this.cache     = new LinkedHashMap<Long, Huffman>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<Long, Huffman> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+    
+    /**
+     * Saves the given model under the given ID, replacing any model already
+     * saved there; the file is written in full before it replaces the old one
+     * @param id The model's ID
+     * @param model The trained model
+     * @throws IOException if the model file cannot be written
+     */
+    public void save (long id, Huffman model) throws IOException {
+        checkId(id);
+        long[] counts = model.corpusCounts();
+        BitWriter out = new BitWriter(4096);
+        boolean limited = model.maxCodeLength() < CodeTable.MAX_CODE_LENGTH;
+        out.write((model.hasEscape() ? ESCAPE : 0) | (limited ? LIMITED : 0), 8);
+        if (limited) {
+            out.write(model.maxCodeLength(), 8);
+        }
+        int present = 0;
+        for (long count: counts) {
+            if (count > 0) {
+                present++;
+            }
+        }
+        out.writeVarint(present);
+        int previous = 0;
+        for (int c = 0; c < counts.length; c++) {
+            if (counts[c] > 0) {
+                out.writeVarint(c - previous);
+                out.writeVarint(counts[c]);
+                previous = c;
+            }
+        }
+        
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, id + "-", ".tmp");
+        Files.write(temp, out.toByteArray());
+        Files.move(temp, file(id), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        synchronized (cache) {
+            cache.put(id, model);
+        }
+    }
+    
+    /**
+     * Returns the model saved under the given ID, loading it if it is not cached
+     * @param id The model's ID
+     * @return The model
+     * @throws IOException if there is no such model or its file cannot be read
+     */
+    public Huffman get (long id) throws IOException {
+        checkId(id);
+        synchronized (cache) {
+            Huffman model = cache.get(id);
+            if (model != null) {
+                return model;
+            }
+        }
+        
+        //loading outside the lock, so a slow disk stalls only this model's readers
+        Huffman model = load(id);
+        synchronized (cache) {
+            Huffman raced = cache.get(id);
+            if (raced != null) {
+                return raced;
+            }
+            cache.put(id, model);
+        }
+        return model;
+    }
+    
+    /**
+     * @param id A model ID
+     * @return true if the model is currently loaded
+     */
+    boolean isCached (long id) {
+        synchronized (cache) {
+            return cache.containsKey(id);
+        }
+    }
+    
+    /**
+     * Compresses the given message with the model saved under the given ID
+     * @param id The model's ID
+     * @param message String representing the corpus to compress.
+     * @return {@code byte[]} holding the varint ID followed by the compressed
+     *         message in the format of Huffman.compress
+     * @throws IOException if there is no such model or its file cannot be read
+     * @throws IllegalArgumentException if the message contains a character
+     *         the model cannot encode
+     */
+    public byte[] compress (long id, String message) throws IOException {
+        return get(id).compressTagged(id, message);
+    }
+    
+    /**
+     * Decompresses a frame made by compress, with the model its ID names
+     * @param frame {@code byte[]} in the format made by compress
+     * @return Decompressed String representation of the compressed bytecode message.
+     * @throws IOException if there is no such model or its file cannot be read
+     * @throws IllegalArgumentException if the frame is malformed
+     */
+    public String decompress (byte[] frame) throws IOException {
+        BitReader in = new BitReader(frame, 0, frame.length);
+        return get(in.readVarint()).decompress(in);
+    }
+    
+    /**
+     * @param frame {@code byte[]} in the format made by compress
+     * @return The ID of the model the frame was compressed with
+     */
+    public static long modelId (byte[] frame) {
+        return new BitReader(frame, 0, frame.length).readVarint();
+    }
+    
+    /**
+     * Reads and rebuilds the model saved under the given ID
+     */
+    private Huffman load (long id) throws IOException {
+        byte[] bytes  = Files.readAllBytes(file(id));
+        BitReader in  = new BitReader(bytes, 0, bytes.length);
+        int flag      = in.readByte();
+        int maxLength = (flag & LIMITED) != 0 ? in.readByte() : CodeTable.MAX_CODE_LENGTH;
+        long present  = in.readVarint();
+        int[] counts  = new int[Character.MAX_VALUE + 1];
+        long c        = 0;
+        for (long i = 0; i < present; i++) {
+            c += in.readVarint();
+            long count = in.readVarint();
+            if (flag > (ESCAPE | LIMITED) || c > Character.MAX_VALUE || count > Integer.MAX_VALUE || in.bytePosition() > bytes.length) {
+                throw new IOException("Malformed model file for ID " + id);
+            }
+            counts[(int) c] = (int) count;
+        }
+        try {
+            return new Huffman(counts, maxLength, (flag & ESCAPE) != 0);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("Malformed model file for ID " + id, e);
+        }
+    }
+    
+    private Path file (long id) {
+        return directory.resolve(id + ".huff");
+    }
+    
+    private static void checkId (long id) {
+        if (id < 0) {
+            throw new IllegalArgumentException("Model IDs must be non-negative: " + id);
+        }
+    }
+    
+}
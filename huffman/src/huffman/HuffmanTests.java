@@ -2,6 +2,25 @@ package huffman;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
 
 public class HuffmanTests {
     
@@ -48,6 +67,67 @@ public class HuffmanTests {
         assertArrayEquals(compressed, h.compress("BABCBC"));
     }
     
+    @Test
+    public void comp_t4() {
+        Huffman h = new Huffman("AB");
+        // byte 0: 0000 1000 = 8 (message length = 8)
+        // byte 1: 0101 0101 = 85 (0 = "A", 1 = "B")
+        // [!] Bitstring ends exactly on a byte boundary, so no padding
+        byte[] compressed = {8, 85};
+        assertArrayEquals(compressed, h.compress("ABABABAB"));
+    }
+    
+    @Test
+    public void comp_t5() {
+        Huffman h = new Huffman("AB");
+        // byte 0:    2 symbols in header
+        // byte 1, 2: 'A' (gap 65 from 0), code length 1
+        // byte 3, 4: 'B' (gap 1 from 'A'), code length 1
+        // byte 5, 6: message as in comp_t0 (canonical 0 = "A", 1 = "B")
+        byte[] compressed = {2, 65, 1, 1, 1, 2, 64};
+        assertArrayEquals(compressed, h.compressCanonical("AB"));
+    }
+    
+    @Test
+    public void comp_t6() {
+        Huffman h = new Huffman("AB");
+        // byte 0: 1010 1100 = -84 (low 7 bits of 300, more length bytes follow)
+        // byte 1: 0000 0010 = 2 (high bits of 300, message length = 300)
+        // bytes 2-39: "AB" x 150 = 0101 0101 (85) x 37, then 0101 0000 = 80
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 150; i++) { message.append("AB"); }
+        byte[] compressed = new byte[40];
+        compressed[0] = -84;
+        compressed[1] = 2;
+        Arrays.fill(compressed, 2, 39, (byte) 85);
+        compressed[39] = 80;
+        assertArrayEquals(compressed, h.compress(message.toString()));
+    }
+    
+    @Test
+    public void comp_t7() {
+        // An empty corpus can still compress (and decompress) the empty message
+        Huffman h = new Huffman("");
+        byte[] compressed = {0};
+        assertArrayEquals(compressed, h.compress(""));
+        assertEquals("", h.decompress(compressed));
+    }
+    
+    @Test
+    public void comp_t8() {
+        // Large corpora are counted in parallel slices; the counts must match
+        StringBuilder corpus = new StringBuilder();
+        int[] counts = new int[128];
+        Random rng = new Random(282);
+        for (int i = 0; i < 3_000_000; i++) {
+            char c = (char) ('a' + (int) Math.abs(rng.nextGaussian() * 6) % 26);
+            corpus.append(c);
+            counts[c]++;
+        }
+        String message = "thequickbrownfoxjumpsoverthelazydog";
+        assertArrayEquals(new Huffman(counts).compress(message), new Huffman(corpus.toString()).compress(message));
+    }
+    
     
     // Decompression Tests
     // -----------------------------------------------
@@ -106,4 +186,668 @@ public class HuffmanTests {
         byte[] compressed = {6, -15};
         assertEquals("AAAABC", h.decompress(compressed));
     }
+    
+    @Test
+    public void decom_t7() {
+        // Fibonacci counts make a maximally skewed trie whose rarest codes
+        // (13 bits) are longer than a single decode table probe
+        StringBuilder corpus = new StringBuilder();
+        int a = 1, b = 1;
+        for (char c = 'A'; c <= 'N'; c++) {
+            for (int i = 0; i < a; i++) { corpus.append(c); }
+            int next = a + b; a = b; b = next;
+        }
+        Huffman h = new Huffman(corpus.toString());
+        String message = "NMLKJIHGFEDCBAABCDEFGHIJKLMN";
+        assertEquals(message, h.decompress(h.compress(message)));
+    }
+    
+    @Test
+    public void decom_t8() {
+        // Canonical messages decode without the Huffman instance that made them
+        byte[] compressed = new Huffman("AAAABBBCCD").compressCanonical("DCBAABCD");
+        assertEquals("DCBAABCD", Huffman.decompressCanonical(compressed));
+    }
+    
+    @Test
+    public void decom_t9() {
+        // Long enough to be split into several blocks, with a partial last block
+        Huffman h = new Huffman("AAAABBBCCD");
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 3 * Huffman.BLOCK_SIZE + 7; i++) {
+            message.append("ABCD".charAt(i * 7 % 4));
+        }
+        String expected = message.toString();
+        assertEquals(expected, h.decompress(h.compress(expected)));
+        assertEquals(expected, Huffman.decompressCanonical(h.compressCanonical(expected)));
+    }
+    
+    @Test
+    public void decom_t10() {
+        // Same skewed corpus as decom_t7, with codes limited to 8 bits
+        StringBuilder corpus = new StringBuilder();
+        int a = 1, b = 1;
+        for (char c = 'A'; c <= 'N'; c++) {
+            for (int i = 0; i < a; i++) { corpus.append(c); }
+            int next = a + b; a = b; b = next;
+        }
+        Huffman h = new Huffman(corpus.toString(), 8);
+        for (int length: h.codeTable().lengths) {
+            assertTrue(length <= 8);
+        }
+        assertTrue(h.limitOverhead() > 0);
+        assertEquals(0, new Huffman(corpus.toString()).limitOverhead(), 0);
+        
+        String message = "NMLKJIHGFEDCBAABCDEFGHIJKLMN";
+        assertEquals(message, h.decompress(h.compress(message)));
+        assertEquals(message, Huffman.decompressCanonical(h.compressCanonical(message)));
+        
+        // The trie spells out the limited code too
+        byte[] compressed = h.compress("NAN");
+        String bits = "";
+        for (int i = 1; i < compressed.length; i++) { bits += h.getBitStr(compressed[i]); }
+        assertEquals("NAN", h.decode(bits, 3));
+    }
+    
+    @Test
+    public void decom_t11() {
+        // A length no payload could hold is rejected before anything is allocated,
+        // as are lengths whose varint runs into bit 63 (negative) or past it
+        Huffman h = new Huffman("AAAABBBCCD");
+        byte[][] lengths = {
+            {-1, -1, -1, -1, 7},
+            {-128, -128, -128, -128, -128, -128, -128, -128, -128, 1},
+            {-59, -77, -90, -107, -9, -53, -59, -62, -30, 29}
+        };
+        List<Callable<Object>> decoders = new ArrayList<>();
+        for (byte[] length: lengths) {
+            decoders.add(() -> h.decompress(length));
+            decoders.add(() -> h.decompressParallel(length));
+            decoders.add(() -> h.decompressInterleaved(length));
+            decoders.add(() -> h.decompress(ByteBuffer.wrap(length), new char[16]));
+            decoders.add(() -> new ByteHuffman(new byte[] {1, 2}).decompress(length));
+            decoders.add(() -> new ContextHuffman("ABAB", 1 << 20, 1).decompress(length));
+            // read as a canonical header, the same bytes are a symbol count
+            decoders.add(() -> Huffman.decompressCanonical(length));
+        }
+        decoders.addAll(Arrays.asList(
+            // An interleaved sub-stream size is bounded like a length
+            () -> h.decompressInterleaved(new byte[] {4, -128, -128, -128, -128, -128, -128, -128, -128, -128, 1, 1, 1, 1, 0, 0, 0, 0}),
+            // A frame cut short decodes its missing bits as padding, so is caught after
+            () -> h.decompress(new byte[] {20}),
+            () -> h.decompress(Arrays.copyOf(h.compress("ABCDABCDABCD"), 2)),
+            () -> {
+                StringBuilder message = new StringBuilder();
+                for (int i = 0; i < 2 * Huffman.BLOCK_SIZE; i++) { message.append("ABCD".charAt(i % 4)); }
+                byte[] compressed = h.compress(message.toString());
+                return h.decompressParallel(Arrays.copyOf(compressed, compressed.length - 1));
+            }
+        ));
+        for (Callable<Object> decoder: decoders) {
+            try {
+                decoder.call();
+                fail("Malformed message decompressed");
+            } catch (IllegalArgumentException e) {
+                // expected
+            } catch (Exception e) {
+                fail("Unexpected " + e);
+            }
+        }
+    }
+    
+    
+    // Streaming Tests
+    // -----------------------------------------------
+    @Test
+    public void stream_t0() throws IOException {
+        Huffman h = new Huffman("AAAABBBCCD");
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 2 * Huffman.BLOCK_SIZE + 11; i++) {
+            message.append("ABCD".charAt(i * 5 % 4));
+        }
+        
+        // Written in uneven pieces so blocks straddle write calls
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new HuffmanWriter(h, bytes);
+        for (int i = 0; i < message.length(); i += 1000) {
+            out.write(message.substring(i, Math.min(i + 1000, message.length())));
+        }
+        out.close();
+        
+        StringBuilder result = new StringBuilder();
+        Reader in = new HuffmanReader(h, new ByteArrayInputStream(bytes.toByteArray()));
+        char[] buffer = new char[777];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            result.append(buffer, 0, n);
+        }
+        in.close();
+        assertEquals(message.toString(), result.toString());
+    }
+    
+    @Test
+    public void stream_t1() throws IOException {
+        Huffman h = new Huffman("AB");
+        // block:  2 chars, 1 byte, 0100 0000 = 64 (as in comp_t0)
+        // marker: 0 chars
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new HuffmanWriter(h, bytes);
+        out.write("AB");
+        out.close();
+        byte[] compressed = {2, 1, 64, 0};
+        assertArrayEquals(compressed, bytes.toByteArray());
+    }
+    
+    @Test
+    public void stream_t2() throws IOException {
+        // The text drifts from lowercase to digits the model has never seen
+        Huffman h = new Huffman("abcdefgh");
+        StringBuilder message = new StringBuilder();
+        Random rng = new Random(282);
+        for (int i = 0; i < 4 * Huffman.BLOCK_SIZE; i++) {
+            boolean late = rng.nextInt(4 * Huffman.BLOCK_SIZE) < i;
+            message.append(late ? "0123456789".charAt(rng.nextInt(10) / 3) : "abcdefgh".charAt(rng.nextInt(8)));
+        }
+        
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        Writer out = new HuffmanWriter(h, bytes, true);
+        out.write(message.toString());
+        out.close();
+        
+        StringBuilder result = new StringBuilder();
+        Reader in = new HuffmanReader(h, new ByteArrayInputStream(bytes.toByteArray()), true);
+        char[] buffer = new char[4096];
+        for (int n; (n = in.read(buffer)) != -1; ) {
+            result.append(buffer, 0, n);
+        }
+        in.close();
+        assertEquals(message.toString(), result.toString());
+        // Beats even a fixed model trained on the whole message in hindsight
+        assertTrue(bytes.size() < new Huffman(message.toString()).compress(message.toString()).length);
+    }
+    
+    @Test
+    public void stream_t3() throws IOException {
+        // Block counts that overflow into bit 63 (negative) or past it are
+        // malformed, rather than blocks of nothing that read forever
+        Huffman h = new Huffman("AB");
+        byte[][] streams = {
+            {-128, -128, -128, -128, -128, -128, -128, -128, -128, 1, 1, 64, 0},
+            {-1, -1, -1, -1, -1, -1, -1, -1, -1, 3, 1, 64, 0},
+            {2, -128, -128, -128, -128, -128, -128, -128, -128, -128, 1, 64, 0}
+        };
+        for (byte[] stream: streams) {
+            Reader in = new HuffmanReader(h, new ByteArrayInputStream(stream));
+            try {
+                in.read(new char[16]);
+                fail("Malformed block read");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    
+    // Parallel Tests
+    // -----------------------------------------------
+    @Test
+    public void parallel_t0() {
+        Huffman h = new Huffman("AAAABBBCCD");
+        StringBuilder message = new StringBuilder();
+        for (int i = 0; i < 5 * Huffman.BLOCK_SIZE + 3; i++) {
+            message.append("ABCD".charAt((i / 3 + i) % 4));
+        }
+        String expected = message.toString();
+        byte[] compressed = h.compressParallel(expected);
+        assertArrayEquals(h.compress(expected), compressed);
+        assertEquals(expected, h.decompressParallel(compressed));
+    }
+    
+    @Test
+    public void parallel_t1() {
+        // Short messages are a single bitstring, same as compress
+        Huffman h = new Huffman("ABBBCC");
+        byte[] compressed = {6, 77, -128};
+        assertArrayEquals(compressed, h.compressParallel("BABCBC"));
+        assertEquals("BABCBC", h.decompressParallel(compressed));
+    }
+    
+    @Test
+    public void parallel_t2() throws Exception {
+        // One shared instance serving many threads at once
+        Huffman h = new Huffman("the quick brown fox jumps over the lazy dog");
+        List<Callable<Boolean>> jobs = new ArrayList<>();
+        for (int t = 0; t < 16; t++) {
+            final int seed = t;
+            jobs.add(() -> {
+                Random rng = new Random(seed);
+                for (int i = 0; i < 500; i++) {
+                    char[] message = new char[rng.nextInt(300)];
+                    for (int j = 0; j < message.length; j++) {
+                        message[j] = "the quick brown fox".charAt(rng.nextInt(19));
+                    }
+                    String expected = new String(message);
+                    if (!expected.equals(h.decompress(h.compress(expected)))) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        try {
+            for (Future<Boolean> result: pool.invokeAll(jobs)) {
+                assertTrue(result.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+    
+    
+    // Byte Model Tests
+    // -----------------------------------------------
+    @Test
+    public void bytes_t0() {
+        ByteHuffman h = new ByteHuffman(new byte[] {0, -1, -1, -1, 5, 5});
+        // byte 0: 0000 0100 = 4 (message length = 4)
+        // byte 1: 0111 0000 = 112 (canonical 0 = -1, 10 = 0, 11 = 5)
+        byte[] compressed = {4, 112};
+        assertArrayEquals(compressed, h.compress(new byte[] {-1, 5, 0, -1}));
+        assertArrayEquals(new byte[] {-1, 5, 0, -1}, h.decompress(compressed));
+    }
+    
+    @Test
+    public void bytes_t1() {
+        byte[] data = new byte[2 * Huffman.BLOCK_SIZE + 17];
+        new Random(282).nextBytes(data);
+        ByteHuffman h = new ByteHuffman(data);
+        assertArrayEquals(data, h.decompress(h.compress(data)));
+    }
+    
+    
+    // File Tests
+    // -----------------------------------------------
+    @Test
+    public void file_t0() throws IOException {
+        // Skewed random bytes spanning several blocks, every value possible
+        byte[] data = new byte[3 * Huffman.BLOCK_SIZE + 123];
+        Random rng = new Random(282);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (rng.nextGaussian() * 20);
+        }
+        Path in = Files.createTempFile("huffman", ".in");
+        Path mapped = Files.createTempFile("huffman", ".mapped");
+        Path heap = Files.createTempFile("huffman", ".heap");
+        Path out = Files.createTempFile("huffman", ".out");
+        try {
+            Files.write(in, data);
+            HuffmanFiles.compress(in, mapped);
+            HuffmanFiles.compressInMemory(in, heap);
+            assertArrayEquals(Files.readAllBytes(heap), Files.readAllBytes(mapped));
+            
+            HuffmanFiles.decompress(mapped, out);
+            assertArrayEquals(data, Files.readAllBytes(out));
+            
+            // An archive cut in half must not decode its missing half from padding
+            byte[] archive = Files.readAllBytes(mapped);
+            Files.write(mapped, Arrays.copyOf(archive, archive.length / 2));
+            try {
+                HuffmanFiles.decompress(mapped, out);
+                fail("Truncated archive decompressed");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            for (Path p: Arrays.asList(in, mapped, heap, out)) { Files.deleteIfExists(p); }
+        }
+    }
+    
+    
+    // Training Tests
+    // -----------------------------------------------
+    @Test
+    public void train_t0() {
+        // A small budget still learns the skew, and unseen ASCII stays encodable
+        List<String> documents = new ArrayList<>();
+        Random rng = new Random(282);
+        for (int i = 0; i < 2000; i++) {
+            StringBuilder doc = new StringBuilder();
+            for (int j = 0; j < 50; j++) {
+                doc.append((char) ('a' + Math.min(25, (int) Math.abs(rng.nextGaussian() * 3))));
+            }
+            documents.add(doc.toString());
+        }
+        HuffmanTrainer trainer = new HuffmanTrainer().budget(5000).smoothing();
+        Huffman h = trainer.train(documents.stream());
+        assertTrue(h.canEncode("Unseen, but ASCII!"));
+        assertEquals("Unseen, but ASCII!", h.decompress(h.compress("Unseen, but ASCII!")));
+        assertFalse(h.canEncode("\u00e9"));
+        
+        assertTrue(trainer.heldOutChars() > 0);
+        assertTrue(trainer.estimatedRatio() < 0.5);
+        assertEquals(trainer.estimatedBitsPerChar(), trainer.actualBitsPerChar(), 0.5);
+    }
+    
+    @Test
+    public void train_t1() {
+        // A document longer than the budget neither freezes nor empties the sample
+        List<String> documents = new ArrayList<>();
+        documents.add("ab");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 2000; i++) { big.append('z'); }
+        documents.add(big.toString());
+        for (int i = 0; i < 5000; i++) {
+            documents.add("c" + (char) ('A' + i % 26));
+        }
+        Huffman h = new HuffmanTrainer().budget(1000).holdout(0).train(documents.stream());
+        assertTrue(h.canEncode("ABCDEFGHIJKLMNOPQRSTUVWXYZ"));
+        
+        StringBuilder history = new StringBuilder();
+        while (history.length() < 2400000) { history.append("hello world "); }
+        h = new HuffmanTrainer().budget(1000).holdout(0).train(Stream.of(history.toString()));
+        assertTrue(h.canEncode("hello"));
+        assertEquals("hello", h.decompress(h.compress("hello")));
+    }
+    
+    @Test
+    public void train_t2() {
+        // Nothing to sample is an error, not an empty model
+        for (Stream<String> documents: Arrays.asList(Stream.<String>empty(), Stream.of("", ""))) {
+            try {
+                new HuffmanTrainer().holdout(0).train(documents);
+                fail("Trained on no characters");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+    
+    
+    // Run Decoding Tests
+    // -----------------------------------------------
+    @Test
+    public void runs_t0() {
+        // Runs of short codes, long codes past the table and escapes all decode alike
+        StringBuilder corpus = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 1 << (20 - i); j += 4096) {
+                corpus.append((char) ('a' + i));
+            }
+        }
+        Huffman h = new Huffman(corpus.toString(), true);
+        assertNotNull(h.runTable());
+        StringBuilder message = new StringBuilder();
+        Random rng = new Random(282);
+        for (int i = 0; i < 3 * Huffman.BLOCK_SIZE; i++) {
+            message.append(rng.nextInt(50) == 0 ? (char) rng.nextInt(1 << 16) : corpus.charAt(rng.nextInt(corpus.length())));
+        }
+        byte[] compressed = h.compress(message.toString());
+        assertEquals(message.toString(), h.decompress(compressed));
+        assertEquals(message.toString(), h.decompressBySymbol(compressed));
+        assertEquals(message.toString(), h.decompressParallel(compressed));
+        
+        // Codes too long for runs to pay are decoded by symbol
+        StringBuilder flat = new StringBuilder();
+        for (char c = 0; c < 256; c++) {
+            flat.append(c);
+        }
+        Huffman flatModel = new Huffman(flat.toString());
+        assertNull(flatModel.runTable());
+        assertEquals(flat.toString(), flatModel.decompress(flatModel.compress(flat.toString())));
+    }
+    
+    
+    // Interleaved Tests
+    // -----------------------------------------------
+    @Test
+    public void interleaved_t0() {
+        // Short messages, including those with fewer chars than streams
+        Huffman h = new Huffman("AAAABBBCCD");
+        for (String message: new String[] {"", "A", "DC", "ABCDDCBA", "ABCABCABCABCDDDDAAA"}) {
+            assertEquals(message, h.decompressInterleaved(h.compressInterleaved(message)));
+        }
+        // 1 char, then the stream lengths (1 byte, 3 empty), then stream 0 coded as by compress
+        assertArrayEquals(new byte[] {1, 1, 0, 0, 0, h.compress("A")[1]}, h.compressInterleaved("A"));
+    }
+    
+    @Test
+    public void interleaved_t1() {
+        // Multiple blocks mixing table codes, codes past the table and escapes
+        StringBuilder corpus = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            for (int j = 0; j < 1 << (20 - i); j += 4096) {
+                corpus.append((char) ('a' + i));
+            }
+        }
+        Huffman h = new Huffman(corpus.toString(), true);
+        StringBuilder message = new StringBuilder();
+        Random rng = new Random(282);
+        for (int i = 0; i < 2 * Huffman.BLOCK_SIZE + 7; i++) {
+            message.append(rng.nextInt(500) == 0 ? (char) rng.nextInt(1 << 16) : corpus.charAt(rng.nextInt(corpus.length())));
+        }
+        byte[] compressed = h.compressInterleaved(message.toString());
+        assertEquals(message.toString(), h.decompressInterleaved(compressed));
+        
+        try {
+            h.decompressInterleaved(Arrays.copyOf(compressed, compressed.length / 2));
+            fail("Truncated message decompressed");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+    
+    
+    // Context Model Tests
+    // -----------------------------------------------
+    @Test
+    public void context_t0() {
+        // Log-like lines, where each character predicts the next, beat order-0
+        StringBuilder corpus = new StringBuilder();
+        Random rng = new Random(282);
+        String[] levels = {"INFO", "WARN", "DEBUG", "ERROR"};
+        for (int i = 0; i < 5000; i++) {
+            corpus.append(levels[rng.nextInt(4)]).append(" user=").append(rng.nextInt(1000))
+                  .append(" status=").append(rng.nextBoolean() ? "ok" : "failed").append('\n');
+        }
+        String text = corpus.toString();
+        ContextHuffman order1 = new ContextHuffman(text);
+        Huffman order0 = new Huffman(text);
+        assertTrue(order1.contexts() > 10);
+        assertTrue(order1.averageCodeLength() < 0.8 * order0.averageCodeLength());
+        assertTrue(order1.compress(text).length < 0.8 * order0.compress(text).length);
+        assertEquals(text, order1.decompress(order1.compress(text)));
+        
+        // Unseen pairs and unseen characters fall back to order-0 and its escape
+        String message = "WARN user=12 status=\u00e9tat\n\nERROR INFO";
+        assertEquals(message, order1.decompress(order1.compress(message)));
+    }
+    
+    @Test
+    public void context_t1() {
+        // The budget caps the tables; with none the model is plain order-0
+        StringBuilder corpus = new StringBuilder();
+        Random rng = new Random(282);
+        for (int i = 0; i < Huffman.BLOCK_SIZE * 2; i++) {
+            corpus.append((char) ('a' + (int) Math.abs(rng.nextGaussian() * 6) % 26));
+        }
+        String text = corpus.toString();
+        ContextHuffman none = new ContextHuffman(text, 0, 1);
+        ContextHuffman small = new ContextHuffman(text, 20000, 1);
+        ContextHuffman all = new ContextHuffman(text, ContextHuffman.DEFAULT_BUDGET, 1);
+        assertEquals(0, none.contexts());
+        assertEquals(new Huffman(text).averageCodeLength(), none.averageCodeLength(), 0.01);
+        assertTrue(small.contexts() > 0 && small.contexts() < all.contexts());
+        assertEquals(26, all.contexts());
+        for (ContextHuffman model: Arrays.asList(none, small, all)) {
+            assertEquals(text, model.decompress(model.compress(text)));
+        }
+    }
+    
+    
+    // Registry Tests
+    // -----------------------------------------------
+    @Test
+    public void registry_t0() throws IOException {
+        // Frames name their model, which a fresh registry reloads from disk
+        Path dir = Files.createTempDirectory("huffman");
+        try {
+            HuffmanRegistry writer = new HuffmanRegistry(dir, 2);
+            Huffman logs = new Huffman("INFO WARN ERROR user=42 status=ok");
+            Huffman mail = new Huffman("Dear Sir or Madam, thank you for your letter", true);
+            writer.save(7, logs);
+            writer.save(300, mail);
+            byte[] a = writer.compress(7, "WARN user=4242");
+            byte[] b = writer.compress(300, "Dear Madam, thanks \u00e9");
+            assertEquals(7, HuffmanRegistry.modelId(a));
+            assertEquals(300, HuffmanRegistry.modelId(b));
+            // A 1-byte ID ahead of exactly what the model's compress makes
+            assertArrayEquals(logs.compress("WARN user=4242"), Arrays.copyOfRange(a, 1, a.length));
+            
+            HuffmanRegistry reader = new HuffmanRegistry(dir, 1);
+            assertEquals("Dear Madam, thanks \u00e9", reader.decompress(b));
+            assertEquals("WARN user=4242", reader.decompress(a));
+            assertTrue(reader.isCached(7));
+            assertFalse(reader.isCached(300));
+            assertArrayEquals(a, reader.compress(7, "WARN user=4242"));
+            
+            try {
+                reader.decompress(new byte[] {5, 0});
+                fail("Unknown model decompressed");
+            } catch (IOException e) {
+                // expected
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p: (Iterable<Path>) files::iterator) { Files.delete(p); }
+            }
+            Files.delete(dir);
+        }
+    }
+    
+    @Test
+    public void registry_t1() throws IOException {
+        // A length-limited model reloads with the same limited code
+        StringBuilder corpus = new StringBuilder();
+        int a = 1, b = 1;
+        for (char c = 'A'; c <= 'N'; c++) {
+            for (int i = 0; i < a; i++) { corpus.append(c); }
+            int next = a + b; a = b; b = next;
+        }
+        Path dir = Files.createTempDirectory("huffman");
+        try {
+            HuffmanRegistry writer = new HuffmanRegistry(dir, 4);
+            writer.save(1, new Huffman(corpus.toString(), 8));
+            byte[] frame = writer.compress(1, "NMLKJIHGFEDCBA");
+            
+            HuffmanRegistry reader = new HuffmanRegistry(dir, 4);
+            assertEquals("NMLKJIHGFEDCBA", reader.decompress(frame));
+            for (int length: reader.get(1).codeTable().lengths) {
+                assertTrue(length <= 8);
+            }
+        } finally {
+            try (Stream<Path> files = Files.list(dir)) {
+                for (Path p: (Iterable<Path>) files::iterator) { Files.delete(p); }
+            }
+            Files.delete(dir);
+        }
+    }
+    
+    
+    // Buffer Tests
+    // -----------------------------------------------
+    @Test
+    public void buffer_t0() {
+        // Frames written into pooled buffers match compress byte for byte
+        StringBuilder corpus = new StringBuilder();
+        Random rng = new Random(282);
+        for (int i = 0; i < Huffman.BLOCK_SIZE * 3 + 5; i++) {
+            corpus.append((char) ('a' + (int) Math.abs(rng.nextGaussian() * 6) % 26));
+        }
+        String text = corpus.toString();
+        Huffman h = new Huffman(text);
+        char[] chars = new char[text.length()];
+        for (ByteBuffer buf: Arrays.asList(ByteBuffer.allocate(1 << 18), ByteBuffer.allocateDirect(1 << 18))) {
+            for (String message: Arrays.asList("", "ba", text)) {
+                buf.clear();
+                buf.put((byte) 7);
+                int n = h.compress(new StringBuilder(message), buf);
+                assertEquals(1 + n, buf.position());
+                buf.flip();
+                buf.get();
+                byte[] frame = new byte[n];
+                buf.duplicate().get(frame);
+                assertArrayEquals(h.compress(message), frame);
+                
+                assertEquals(message.length(), h.decompress(buf, chars));
+                assertEquals(message, new String(chars, 0, message.length()));
+                assertFalse(buf.hasRemaining());
+            }
+        }
+        
+        // Two frames back to back, read into heap and direct CharBuffers
+        ByteBuffer buf = ByteBuffer.allocateDirect(64);
+        h.compress("abc", buf);
+        h.compress("cab", buf);
+        buf.flip();
+        CharBuffer heap = CharBuffer.allocate(8);
+        heap.put('x');
+        assertEquals(3, h.decompress(buf, heap.slice()));
+        CharBuffer direct = ByteBuffer.allocateDirect(16).asCharBuffer();
+        assertEquals(3, h.decompress(buf, direct));
+        direct.flip();
+        assertEquals("cab", direct.toString());
+        assertEquals("xabc", new String(heap.array(), 0, 4));
+        
+        // Overflow on either side leaves both buffers alone
+        try {
+            h.compress(text, ByteBuffer.allocate(16));
+            fail("Compressed into too small a buffer");
+        } catch (BufferOverflowException e) {
+            // expected
+        }
+        ByteBuffer src = ByteBuffer.allocate(64);
+        h.compress("abcd", src);
+        src.flip();
+        try {
+            h.decompress(src, new char[3]);
+            fail("Decompressed into too small an array");
+        } catch (BufferOverflowException e) {
+            assertEquals(0, src.position());
+        }
+    }
+    
+    
+    // Escape Tests
+    // -----------------------------------------------
+    @Test
+    public void escape_t0() {
+        // Unseen characters are escaped, by every codec sharing the model
+        Huffman h = new Huffman("AAAABBBCCD", true);
+        String message = "ABCDEFG \u00e9\uffff\u0000A";
+        assertTrue(h.canEncode(message));
+        assertEquals(message, h.decompress(h.compress(message)));
+        assertEquals(message, Huffman.decompressCanonical(h.compressCanonical(message)));
+        assertEquals(message, h.decompressParallel(h.compressParallel(message)));
+        // A character equal to the escape symbol itself is escaped, not confused with it
+        assertEquals("AE", h.decompress(h.compress("AE")));
+    }
+    
+    @Test
+    public void escape_t1() {
+        // Seen characters keep near-optimal codes, and without an escape nothing changes
+        String corpus = "AAAAAAAABBBBCCD";
+        Huffman plain = new Huffman(corpus);
+        Huffman escaped = new Huffman(corpus, true);
+        assertFalse(plain.canEncode("E"));
+        assertTrue(escaped.averageCodeLength() < plain.averageCodeLength() + 0.5);
+        String bits = "";
+        for (byte b: escaped.compress("ZA")) {
+            bits += escaped.getBitStr(b);
+        }
+        assertEquals("ZA", escaped.decode(bits.substring(8), 2));
+        
+        HuffmanTrainer trainer = new HuffmanTrainer().escape();
+        Huffman trained = trainer.train(Arrays.asList("abc", "abd", "xyz").iterator());
+        assertEquals("\u4e2d\u6587", trained.decompress(trained.compress("\u4e2d\u6587")));
+    }
 }
@@ -0,0 +1,256 @@
+package huffman;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * HuffmanTrainer builds Huffman models from a stream of documents of any
+ * length by training on a sample of at most a fixed number of characters,
+ * so model creation takes bounded memory and time however large the
+ * history is.
+ * 
+ * Documents are sampled with a reservoir: every document has (roughly) the
+ * same chance of making it into the sample, whatever its position in the
+ * stream. One in every holdoutEvery documents is instead set aside in a
+ * smaller held-out reservoir, on which the model is evaluated after
+ * training. Smoothing optionally gives characters the sample never saw a
+ * count of 1, so that they still get a (long) code; an escape code instead
+ * covers every character the sample never saw.
+ */
+public class HuffmanTrainer {
+    
+    /**
+     * Characters given a pseudo-count by smoothing(): printable ASCII,
+     * tab, newline and carriage return
+     */
+    public static final String ASCII;
+    static {
+        StringBuilder ascii = new StringBuilder("\t\n\r");
+        for (char c = ' '; c <= '~'; c++) {
+            ascii.append(c);
+        }
+        ASCII = ascii.toString();
+    }
+    
+    private long    budget       = 1 << 24;
+    private int     holdoutEvery = 20;
+    private String  smoothing    = "";
+    private boolean escape;
+    private long    seed         = 282;
+    
+    private double  estimatedBits, actualBits;
+    private long    heldOutChars;
+    
+    /**
+     * Sets the most characters the training sample may hold (16M by default);
+     * the held-out sample may hold a tenth as many more
+     * @param chars The sample budget in characters
+     * @return this trainer
+     */
+    public HuffmanTrainer budget (long chars) {
+        if (chars <= 0) {
+            throw new IllegalArgumentException("Budget must be positive");
+        }
+        budget = chars;
+        return this;
+    }
+    
+    /**
+     * Sets aside one in every n documents for evaluation (20 by default)
+     * @param n Documents per held-out document, or 0 to hold none out
+     * @return this trainer
+     */
+    public HuffmanTrainer holdout (int n) {
+        if (n < 0 || n == 1) {
+            throw new IllegalArgumentException("Cannot hold out 1 in " + n + " documents");
+        }
+        holdoutEvery = n;
+        return this;
+    }
+    
+    /**
+     * Gives every printable ASCII character missing from the sample a count of 1
+     * @return this trainer
+     */
+    public HuffmanTrainer smoothing () {
+        return smoothing(ASCII);
+    }
+    
+    /**
+     * Gives every character of the given alphabet missing from the sample a
+     * count of 1
+     * @param alphabet The characters that must get a code
+     * @return this trainer
+     */
+    public HuffmanTrainer smoothing (String alphabet) {
+        smoothing = alphabet;
+        return this;
+    }
+    
+    /**
+     * Adds an escape code to the model, so that it can encode any character,
+     * seen or not (see Huffman(corpus, escape))
+     * @return this trainer
+     */
+    public HuffmanTrainer escape () {
+        escape = true;
+        return this;
+    }
+    
+    /**
+     * Sets the seed of the sampling, so that training is repeatable
+     * @param seed The random seed
+     * @return this trainer
+     */
+    public HuffmanTrainer seed (long seed) {
+        this.seed = seed;
+        return this;
+    }
+    
+    /**
+     * Trains a model on a sample of the given documents
+     * @param documents The documents to sample from
+     * @return The trained Huffman model
+     * @throws IllegalArgumentException if the training sample holds no characters
+     */
+    public Huffman train (Stream<? extends CharSequence> documents) {
+        return train(documents.iterator());
+    }
+    
+    /**
+     * Trains a model on a sample of the given documents, then evaluates it on
+     * the held-out sample; see estimatedBitsPerChar and actualBitsPerChar
+     * @param documents The documents to sample from
+     * @return The trained Huffman model
+     * @throws IllegalArgumentException if the training sample holds no characters
+     */
+    public Huffman train (Iterator<? extends CharSequence> documents) {
+        Random rng                  = new Random(seed);
+        Reservoir training          = new Reservoir(budget);
+        Reservoir heldOut           = new Reservoir(Math.max(1, budget / 10));
+        for (long i = 0; documents.hasNext(); i++) {
+            CharSequence document = documents.next();
+            if (holdoutEvery > 0 && i % holdoutEvery == holdoutEvery - 1) {
+                heldOut.offer(document, rng);
+            } else {
+                training.offer(document, rng);
+            }
+        }
+        if (training.chars == 0) {
+            throw new IllegalArgumentException("No characters to train on");
+        }
+        
+        //counting the sample, plus the smoothing pseudo-counts
+        int[] counts = new int[Character.MAX_VALUE + 1];
+        for (CharSequence document: training.documents) {
+            for (int j = 0; j < document.length(); j++) {
+                counts[document.charAt(j)]++;
+            }
+        }
+        for (int j = 0; j < smoothing.length(); j++) {
+            if (counts[smoothing.charAt(j)] == 0) {
+                counts[smoothing.charAt(j)] = 1;
+            }
+        }
+        Huffman model = new Huffman(counts, escape);
+        
+        //estimate from the training sample, actual from compressing the held-out one
+        estimatedBits = model.averageCodeLength();
+        long bytes    = 0;
+        heldOutChars  = 0;
+        for (CharSequence document: heldOut.documents) {
+            String text = document.toString();
+            if (model.canEncode(text)) {
+                bytes        += model.compress(text).length;
+                heldOutChars += text.length();
+            }
+        }
+        actualBits = heldOutChars == 0 ? Double.NaN : 8.0 * bytes / heldOutChars;
+        return model;
+    }
+    
+    /**
+     * @return The bits per character the last trained model spends on its own
+     *         training sample
+     */
+    public double estimatedBitsPerChar () {
+        return estimatedBits;
+    }
+    
+    /**
+     * @return The bits per character, length prefixes and padding included, of
+     *         compressing each held-out document with the last trained model;
+     *         NaN if no held-out document could be compressed
+     */
+    public double actualBitsPerChar () {
+        return actualBits;
+    }
+    
+    /**
+     * @return The estimated compression ratio of the last trained model, against
+     *         one byte per character
+     */
+    public double estimatedRatio () {
+        return estimatedBits / 8;
+    }
+    
+    /**
+     * @return The compression ratio of the last trained model on the held-out
+     *         sample, against one byte per character
+     */
+    public double actualRatio () {
+        return actualBits / 8;
+    }
+    
+    /**
+     * @return The number of held-out characters the actual ratio was measured on;
+     *         documents with characters the model cannot encode are left out
+     */
+    public long heldOutChars () {
+        return heldOutChars;
+    }
+    
+    /**
+     * A reservoir sample of documents holding at most a budget of characters:
+     * a document is kept whenever there is room for it, and otherwise the i-th
+     * document replaces a random kept document with probability size / i, when
+     * it fits in its place. A document longer than the whole budget is cut to
+     * a random window of budget characters first.
+     */
+    private static class Reservoir {
+        
+        final List<CharSequence> documents = new ArrayList<>();
+        final long budget;
+        long chars, seen;
+        
+        Reservoir (long budget) {
+            this.budget = budget;
+        }
+        
+        void offer (CharSequence document, Random rng) {
+            seen++;
+            if (document.length() > budget) {
+                int start = (int) (rng.nextDouble() * (document.length() - budget + 1));
+                document  = document.subSequence(start, start + (int) budget);
+            }
+            if (chars + document.length() <= budget) {
+                documents.add(document);
+                chars += document.length();
+                return;
+            }
+            long slot = (long) (rng.nextDouble() * seen);
+            if (slot < documents.size()) {
+                CharSequence old = documents.get((int) slot);
+                if (chars - old.length() + document.length() <= budget) {
+                    documents.set((int) slot, document);
+                    chars += document.length() - old.length();
+                }
+            }
+        }
+        
+    }
+    
+}
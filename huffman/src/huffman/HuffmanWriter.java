@@ -0,0 +1,165 @@
+package huffman;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * HuffmanWriter compresses the characters written to it with a Huffman
+ * instance's encoding and streams them to an underlying OutputStream, a
+ * block of at most Huffman.BLOCK_SIZE characters at a time, so memory use
+ * stays bounded however much text passes through.
+ * 
+ * The stream is a sequence of blocks, each formatted as: (1) the number of
+ * characters in the block as a varint, (2) the padded length of the block's
+ * bitstring in bytes as a varint, (3) the bitstring itself. An empty block
+ * (a 0 character count) marks the end of the stream.
+ * 
+ * In adaptive mode, the model only seeds the code of the first block; every
+ * later block is coded from the live distribution of the blocks before it
+ * (see AdaptiveCode), so a long-lived stream keeps up with drifting text, and
+ * characters missing from the model are escaped rather than rejected.
+ */
+public class HuffmanWriter extends Writer {
+    
+    private final OutputStream  out;
+    private final CodeTable     table;
+    private final AdaptiveCode  adaptive;   // null unless in adaptive mode
+    private final int           blockSize;
+    private final char[]        block   = new char[Huffman.BLOCK_SIZE];
+    private final CharBuffer    pending = CharBuffer.wrap(block);
+    private final BitWriter     bits    = new BitWriter(Huffman.BLOCK_SIZE / 2);
+    private final BitWriter     header  = new BitWriter(16);
+    private int                 count;
+    private boolean             closed;
+    
+    /**
+     * Constructs a new HuffmanWriter
+     * @param model The Huffman instance whose encoding compresses the stream;
+     *        a HuffmanReader must use the same instance to read it back
+     * @param out The stream receiving the compressed blocks
+     */
+    public HuffmanWriter (Huffman model, OutputStream out) {
+        this(model, out, false);
+    }
+    
+    /**
+     * Constructs a new HuffmanWriter, optionally in adaptive mode
+     * @param model The Huffman instance whose encoding compresses the stream
+     *        (or, in adaptive mode, its first block)
+     * @param out The stream receiving the compressed blocks
+     * @param adaptive true to re-model the code after every block; the
+     *        HuffmanReader must be in adaptive mode too
+     */
+    public HuffmanWriter (Huffman model, OutputStream out, boolean adaptive) {
+        this.out       = out;
+        this.table     = model.codeTable();
+        this.adaptive  = adaptive ? new AdaptiveCode(model) : null;
+        this.blockSize = adaptive ? AdaptiveCode.BLOCK_SIZE : Huffman.BLOCK_SIZE;
+    }
+    
+    /**
+     * Constructs a new HuffmanWriter over an NIO channel
+     * @param model The Huffman instance whose encoding compresses the stream
+     * @param channel The channel receiving the compressed blocks
+     */
+    public HuffmanWriter (Huffman model, WritableByteChannel channel) {
+        this(model, Channels.newOutputStream(channel), false);
+    }
+    
+    /**
+     * Constructs a new HuffmanWriter over an NIO channel, optionally in
+     * adaptive mode
+     * @param model The Huffman instance whose encoding compresses the stream
+     *        (or, in adaptive mode, its first block)
+     * @param channel The channel receiving the compressed blocks
+     * @param adaptive true to re-model the code after every block
+     */
+    public HuffmanWriter (Huffman model, WritableByteChannel channel, boolean adaptive) {
+        this(model, Channels.newOutputStream(channel), adaptive);
+    }
+    
+    /**
+     * Buffers the given characters, compressing a block whenever one fills up
+     * @throws IllegalArgumentException if a character did not appear in the
+     *         model's corpus (outside adaptive mode)
+     */
+    @Override
+    public void write (char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        while (len > 0) {
+            int n = Math.min(len, blockSize - count);
+            System.arraycopy(cbuf, off, block, count, n);
+            count += n;
+            off   += n;
+            len   -= n;
+            if (count == blockSize) {
+                writeBlock();
+            }
+        }
+    }
+    
+    /**
+     * Compresses any buffered characters as a (possibly short) block and
+     * flushes the underlying stream
+     */
+    @Override
+    public void flush () throws IOException {
+        ensureOpen();
+        writeBlock();
+        out.flush();
+    }
+    
+    /**
+     * Compresses any buffered characters, writes the end-of-stream marker
+     * and closes the underlying stream
+     */
+    @Override
+    public void close () throws IOException {
+        if (closed) {
+            return;
+        }
+        writeBlock();
+        header.reset();
+        header.writeVarint(0);
+        header.writeTo(out);
+        out.close();
+        closed = true;
+    }
+    
+    /**
+     * Encodes the buffered characters and writes them out as one block
+     */
+    private void writeBlock () throws IOException {
+        if (count == 0) {
+            return;
+        }
+        bits.reset();
+        if (adaptive == null) {
+            Huffman.encodeRange(pending, 0, count, table, bits);
+        } else {
+            for (int i = 0; i < count; i++) {
+                adaptive.encode(block[i], bits);
+            }
+            adaptive.update(block, count);
+        }
+        bits.align();
+        
+        header.reset();
+        header.writeVarint(count);
+        header.writeVarint(bits.size());
+        header.writeTo(out);
+        bits.writeTo(out);
+        count = 0;
+    }
+    
+    private void ensureOpen () throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+    
+}
@@ -0,0 +1,137 @@
+package huffman;
+
+import java.nio.ByteBuffer;
+
+/**
+ * RunTables decode several symbols per table probe: the entry for each
+ * RUN_BITS-bit window of input holds the run of up to RUN_LENGTH whole
+ * codes at the front of the window, plus the bits they take up. Text whose
+ * common codes are a few bits long then decodes a run per probe instead of
+ * a symbol per probe, falling back to the CodeTable it was built from for
+ * long codes, escapes and the last few symbols of a range.
+ */
+class RunTable {
+    
+    /**
+     * Bits of input resolved by a single run probe
+     */
+    static final int RUN_BITS = 12;
+    
+    /**
+     * Most symbols decoded by a single run probe: three 16-bit symbols and
+     * the run's length and bits consumed fill one long entry
+     */
+    static final int RUN_LENGTH = 3;
+    
+    /**
+     * Run probes per 8-byte refill, which holds at least 56 bits
+     */
+    static final int PROBES = 56 / RUN_BITS;
+    
+    private final CodeTable codes;
+    
+    // runs[window] packs the window's run into one word, 16 bits per symbol
+    // from the top, above (run length << 8 | bits consumed); 0 when even the
+    // first code does not fit the window
+    private final long[] runs;
+    
+    /**
+     * Constructs the run table for the given code
+     * @param codes The code to decode, with its decoder built
+     */
+    RunTable (CodeTable codes) {
+        this.codes = codes;
+        this.runs  = new long[1 << RUN_BITS];
+        
+        //decoding each window with the single-symbol table, stopping at the
+        //first code that is too long to resolve inside it (or an escape)
+        for (int window = 0; window < runs.length; window++) {
+            int used = 0, count = 0;
+            long run = 0;
+            while (count < RUN_LENGTH) {
+                int rest   = RUN_BITS - used;
+                int symbol = rest == 0 ? -1 : codes.peekSymbol(window & ((1 << rest) - 1), rest);
+                if (symbol < 0) {
+                    break;
+                }
+                run |= (long) symbol << (48 - 16 * count++);
+                used += codes.lengths[symbol];
+            }
+            runs[window] = run | count << 8 | used;
+        }
+    }
+    
+    /**
+     * @param counts Occurrences of each symbol
+     * @param lengths Code length of each symbol
+     * @return true if the codes average at most RUN_BITS / 2 bits, so that runs
+     *         average at least two symbols; longer codes decode faster one
+     *         symbol at a time than one symbol per run
+     */
+    static boolean pays (long[] counts, int[] lengths) {
+        long total = 0;
+        for (long count: counts) {
+            total += count;
+        }
+        return total > 0 && CodeLengths.totalBits(counts, lengths) <= total * (RUN_BITS / 2);
+    }
+    
+    /**
+     * Decodes characters into result[start, end). While at least 8 bytes and
+     * PROBES whole runs remain, the bits are kept in a local accumulator that
+     * one 8-byte read tops up for PROBES probes; the reader takes over for
+     * long codes, escapes and the tail.
+     * @param in The bit stream positioned at the first code
+     * @param result The array receiving the decoded characters
+     * @param start Index of the first character to decode
+     * @param end Index one past the last character to decode
+     */
+    void decode (BitReader in, char[] result, int start, int end) {
+        ByteBuffer words = in.words();
+        int last         = in.limit() - 8;
+        long[] runs      = this.runs;
+        int i            = start;
+        
+        //as in CodeTable.decodeLockstep, 7 of the first 8 bytes count, so that
+        //refills never shift by a whole 64 bits; whole runs are copied
+        //regardless of their length, and only the run's own symbols kept
+        long bitPosition = in.bitPosition();
+        int  p           = (int) (bitPosition >>> 3);
+        int  v           = 56 - (int) (bitPosition & 7);
+        long a           = p <= last ? words.getLong(p) << (56 - v) : 0;
+        p += 7;
+        refills:
+        while (p <= last && end - i >= PROBES * RUN_LENGTH) {
+            a |= words.getLong(p) >>> v;
+            p += (63 - v) >>> 3;
+            v |= 56;
+            for (int probe = 0; probe < PROBES; probe++) {
+                long entry = runs[(int) (a >>> (64 - RUN_BITS))];
+                if (entry == 0) {
+                    //a long code or an escape, decoded by the reader before
+                    //reloading the accumulator from where it stopped
+                    in.seek(8L * p - v);
+                    result[i++] = (char) codes.decode(in);
+                    bitPosition = in.bitPosition();
+                    p = (int) (bitPosition >>> 3);
+                    v = 56 - (int) (bitPosition & 7);
+                    a = p <= last ? words.getLong(p) << (56 - v) : 0;
+                    p += 7;
+                    continue refills;
+                }
+                result[i]     = (char) (entry >>> 48);
+                result[i + 1] = (char) (entry >>> 32);
+                result[i + 2] = (char) (entry >>> 16);
+                a <<= (int) entry & 0xFF;
+                v -= (int) entry & 0xFF;
+                i += (int) entry >>> 8 & 0xFF;
+            }
+        }
+        
+        in.seek(8L * p - v);
+        for (; i < end; i++) {
+            result[i] = (char) codes.decode(in);
+        }
+    }
+    
+}